@@ -0,0 +1,122 @@
+package bitCreekCommon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Misura quanti byte al secondo di pezzi vengono verificati da
+ * {@link TorrentFile#hashsMatch(long, byte[])} al crescere del numero di thread che verificano
+ * in parallelo i pezzi dello stesso descrittore. E' un semplice programma di misura, non usa
+ * nessun framework di benchmark; sta nella directory <code>bench</code>, che non viene compilata
+ * da <code>compile_peer</code> ne' da <code>compile_server</code>, e si compila ed esegue con le
+ * classi comuni:
+ * 
+ * <pre>
+ * javac -d out bitCreekCommon/*.java bench/bitCreekCommon/HashBenchmark.java
+ * java -cp out bitCreekCommon.HashBenchmark [megabyte] [secondi]
+ * </pre>
+ * 
+ * Il file di prova di <code>megabyte</code> M byte casuali (per default 64) viene creato in una
+ * directory temporanea e cancellato alla fine; ogni misura dura <code>secondi</code> secondi (per
+ * default 3) ed e' preceduta da una misura di riscaldamento. Il numero di thread raddoppia da 1
+ * fino al numero di processori.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+public final class HashBenchmark {
+
+	private HashBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 64;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+		File file = File.createTempFile("bitCreek", ".bench");
+		try {
+			writeRandom(file, megabytes << 20);
+			TorrentFile torrent = new TorrentFile(file.getName(), file.getAbsolutePath());
+			byte[][] pieces = readPieces(file, torrent);
+			System.out.println("file length=" + torrent.fileLength + ", piece length="
+					+ torrent.pieceLength + ", pieces=" + pieces.length);
+			measure(torrent, pieces, 1, seconds);
+			int processors = Runtime.getRuntime().availableProcessors();
+			for (int threads = 1;; threads = Math.min(threads * 2, processors)) {
+				double rate = measure(torrent, pieces, threads, seconds);
+				System.out.printf("threads=%d %.1f MB/s%n", threads, rate / (1 << 20));
+				if (threads == processors)
+					break;
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/** scrive <param>length</param> byte casuali nel file <param>file</param> */
+	private static void writeRandom(File file, long length) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			Random random = new Random(0);
+			byte[] buffer = new byte[1 << 20];
+			for (long written = 0; written < length; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** legge in memoria tutti i pezzi del file <param>file</param> */
+	private static byte[][] readPieces(File file, TorrentFile torrent) throws IOException {
+		byte[][] pieces = new byte[torrent.getPiecesNumber()][];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			for (int index = 0; index < pieces.length; index++) {
+				long offset = (long) index * torrent.pieceLength;
+				pieces[index] = new byte[torrent.getLengthOfPiece(offset)];
+				in.seek(offset);
+				in.readFully(pieces[index]);
+			}
+		} finally {
+			in.close();
+		}
+		return pieces;
+	}
+
+	/**
+	 * verifica i pezzi con <param>threads</param> thread per <param>seconds</param> secondi e
+	 * restituisce il numero di byte verificati al secondo
+	 */
+	private static double measure(final TorrentFile torrent, final byte[][] pieces,
+			int threads, long seconds) throws InterruptedException {
+		final AtomicLong verified = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					long bytes = 0;
+					for (int index = first; System.nanoTime() < end; index = (index + 1)
+							% pieces.length) {
+						if (!torrent.hashsMatch((long) index * torrent.pieceLength, pieces[index]))
+							throw new IllegalStateException(" piece " + index + " does not match ");
+						bytes += pieces[index].length;
+					}
+					verified.addAndGet(bytes);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		return verified.get() * 1e9 / (System.nanoTime() - start);
+	}
+}
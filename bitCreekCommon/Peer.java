@@ -60,4 +60,9 @@ public class Peer implements Serializable {
 		Peer other = (Peer) o;
 		return other.address.equals(this.address) && (other.port == this.port);
 	}
+
+	@Override
+	public int hashCode() {
+		return address.hashCode() * 31 + port;
+	}
 }
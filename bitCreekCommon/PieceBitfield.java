@@ -0,0 +1,286 @@
+package bitCreekCommon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * L'insieme dei pezzi di un file posseduti da un peer. I pezzi sono identificati dal loro indice
+ * all'interno del file, cioe' dal loro offset diviso la lunghezza dei pezzi, e ogni pezzo occupa
+ * un solo bit di un array di <code>long</code> aggiornato in modo atomico.
+ * <p>
+ * Il bitfield puo' essere codificato in un array di byte compatto da inviare agli altri peer: il
+ * bit piu' significativo del primo byte corrisponde al pezzo di indice 0, il successivo al pezzo
+ * di indice 1 e cosi' via; i bit che avanzano nell'ultimo byte valgono 0.
+ * <p>
+ * Le operazioni su un singolo pezzo ({@link #has(int)}, {@link #set(int)} e {@link #clear(int)})
+ * sono atomiche e possono essere eseguite da piu' thread senza sincronizzazione, ad esempio per
+ * leggere i pezzi posseduti mentre altri pezzi vengono aggiunti. Le operazioni sull'intero bitfield
+ * non sono atomiche: ogni gruppo di 64 pezzi viene letto o aggiornato atomicamente ma non tutti
+ * insieme.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ */
+public final class PieceBitfield {
+
+	/** i bit dei pezzi, 64 pezzi per ogni elemento */
+	private final AtomicLongArray words;
+
+	/** il numero di pezzi del file */
+	private final int size;
+
+	/**
+	 * Crea un bitfield vuoto per un file di <param>size</param> pezzi.
+	 * 
+	 * @param size
+	 *            il numero di pezzi del file
+	 */
+	public PieceBitfield(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException(" negative size ");
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	/**
+	 * Crea una copia del bitfield <param>other</param>.
+	 * 
+	 * @param other
+	 *            il bitfield da copiare
+	 */
+	public PieceBitfield(PieceBitfield other) {
+		this.size = other.size;
+		this.words = new AtomicLongArray(other.words.length());
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, other.words.get(i));
+	}
+
+	/**
+	 * Decodifica un bitfield ricevuto da un altro peer. Se <param>bytes</param> e' piu' corto
+	 * della codifica di <param>size</param> pezzi i pezzi mancanti si considerano non posseduti;
+	 * i bit oltre l'ultimo pezzo vengono ignorati.
+	 * 
+	 * @param bytes
+	 *            la codifica del bitfield
+	 * @param size
+	 *            il numero di pezzi del file
+	 * @return il bitfield codificato da <param>bytes</param>
+	 */
+	public static PieceBitfield fromByteArray(byte[] bytes, int size) {
+		PieceBitfield bitfield = new PieceBitfield(size);
+		int length = Math.min(bytes.length, (size + 7) >>> 3);
+		for (int i = 0; i < length; i++) {
+			long b = Long.reverse(bytes[i] & 0xffL) >>> 56;
+			bitfield.update(i >>> 3, b << ((i & 7) << 3), true);
+		}
+		bitfield.clearTail();
+		return bitfield;
+	}
+
+	/**
+	 * Restituisce la codifica compatta di questo bitfield.
+	 * 
+	 * @return la codifica compatta di questo bitfield.
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[(size + 7) >>> 3];
+		for (int i = 0; i < bytes.length; i++) {
+			long b = (words.get(i >>> 3) >>> ((i & 7) << 3)) & 0xffL;
+			bytes[i] = (byte) (Long.reverse(b) >>> 56);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Restituisce <code>true</code> se il pezzo di indice <param>index</param> e' presente;
+	 * altrimenti <code>false</code>.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 * @return <code>true</code> se il pezzo di indice <param>index</param> e' presente;
+	 *         altrimenti <code>false</code>.
+	 */
+	public boolean has(int index) {
+		checkIndex(index);
+		return (words.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Aggiunge il pezzo di indice <param>index</param>.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	public void set(int index) {
+		checkIndex(index);
+		update(index >>> 6, 1L << index, true);
+	}
+
+	/**
+	 * Rimuove il pezzo di indice <param>index</param>.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	public void clear(int index) {
+		checkIndex(index);
+		update(index >>> 6, 1L << index, false);
+	}
+
+	/**
+	 * Aggiunge tutti i pezzi del file.
+	 */
+	public void setAll() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, -1L);
+		clearTail();
+	}
+
+	/**
+	 * Aggiunge a questo bitfield tutti i pezzi presenti in <param>other</param>.
+	 * 
+	 * @param other
+	 *            un bitfield dello stesso file
+	 */
+	public void or(PieceBitfield other) {
+		checkSize(other);
+		for (int i = 0; i < words.length(); i++)
+			update(i, other.words.get(i), true);
+	}
+
+	/**
+	 * Rimuove da questo bitfield tutti i pezzi presenti in <param>other</param>.
+	 * 
+	 * @param other
+	 *            un bitfield dello stesso file
+	 */
+	public void andNot(PieceBitfield other) {
+		checkSize(other);
+		for (int i = 0; i < words.length(); i++)
+			update(i, other.words.get(i), false);
+	}
+
+	/**
+	 * Restituisce l'indice del primo pezzo presente con indice maggiore o uguale a
+	 * <param>from</param>, oppure -1 se non ce ne sono.
+	 * 
+	 * @param from
+	 *            l'indice da cui iniziare la ricerca
+	 * @return l'indice del primo pezzo presente con indice maggiore o uguale a <param>from</param>,
+	 *         oppure -1 se non ce ne sono.
+	 */
+	public int nextSetBit(int from) {
+		if (from >= size)
+			return -1;
+		int i = from >>> 6;
+		long word = words.get(i) & (-1L << from);
+		while (true) {
+			if (word != 0)
+				return (i << 6) + Long.numberOfTrailingZeros(word);
+			if (++i == words.length())
+				return -1;
+			word = words.get(i);
+		}
+	}
+
+	/**
+	 * Restituisce l'indice del primo pezzo mancante con indice maggiore o uguale a
+	 * <param>from</param>, oppure -1 se non ce ne sono.
+	 * 
+	 * @param from
+	 *            l'indice da cui iniziare la ricerca
+	 * @return l'indice del primo pezzo mancante con indice maggiore o uguale a
+	 *         <param>from</param>, oppure -1 se non ce ne sono.
+	 */
+	public int nextClearBit(int from) {
+		if (from >= size)
+			return -1;
+		int i = from >>> 6;
+		long word = ~words.get(i) & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				int index = (i << 6) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if (++i == words.length())
+				return -1;
+			word = ~words.get(i);
+		}
+	}
+
+	/**
+	 * Restituisce il numero di pezzi presenti.
+	 * 
+	 * @return il numero di pezzi presenti.
+	 */
+	public int cardinality() {
+		int count = 0;
+		for (int i = 0; i < words.length(); i++)
+			count += Long.bitCount(words.get(i));
+		return count;
+	}
+
+	/**
+	 * Restituisce <code>true</code> se tutti i pezzi del file sono presenti; altrimenti
+	 * <code>false</code>.
+	 * 
+	 * @return <code>true</code> se tutti i pezzi del file sono presenti; altrimenti
+	 *         <code>false</code>.
+	 */
+	public boolean isComplete() {
+		return cardinality() == size;
+	}
+
+	/**
+	 * Restituisce <code>true</code> se nessun pezzo e' presente; altrimenti <code>false</code>.
+	 * 
+	 * @return <code>true</code> se nessun pezzo e' presente; altrimenti <code>false</code>.
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < words.length(); i++)
+			if (words.get(i) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Restituisce il numero di pezzi del file.
+	 * 
+	 * @return il numero di pezzi del file.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** azzera i bit oltre l'ultimo pezzo del file */
+	private void clearTail() {
+		if ((size & 63) != 0)
+			update(words.length() - 1, -1L << size, false);
+	}
+
+	/**
+	 * aggiunge in modo atomico all'elemento <param>i</param> i bit <param>bits</param> se
+	 * <param>set</param> e' <code>true</code>, altrimenti li rimuove
+	 */
+	private void update(int i, long bits, boolean set) {
+		long old;
+		do {
+			old = words.get(i);
+		} while (!words.compareAndSet(i, old, set ? old | bits : old & ~bits));
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(" piece index " + index + " out of [0, " + size
+					+ ")");
+	}
+
+	private void checkSize(PieceBitfield other) {
+		if (other.size != size)
+			throw new IllegalArgumentException(" bitfields of different size ");
+	}
+
+	@Override
+	public String toString() {
+		return PieceBitfield.class.getCanonicalName() + "[pieces=" + cardinality() + "/" + size
+				+ "]";
+	}
+}
@@ -1,25 +1,53 @@
 package bitCreekCommon;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.security.DigestOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Il descrittore di un file. Contiene le seguenti informazioni:
  * <ul>
  * <li>il nome del file</li>
  * <li>la lunghezza totale del file in byte</li>
+ * <li>la lunghezza dei pezzi del file</li>
  * <li>la sequenza di hash dei pezzi del file calcolati usando l'algoritmo
  * <code>java.security.MessageDigest.getInstance("SHA1")</code></li>
  * <li>la porta sulla quale sono in ascolto sia il trackerTCP che il trackerUDP</li>
  * </ul>
+ * Il descrittore viene serializzato, salvato su file e inviato via RMI come una codifica binaria
+ * compatta con gli hash dei pezzi in un'unica tabella (vedi {@link #decode(ByteBuffer)}); l'hash
+ * delle informazioni del file ({@link #getInfoHash()}) ne identifica il contenuto.
  * 
  * Ogni descrittore e' associato ad uno e un solo file. Il file viene diviso in pezzi ciascuno di
- * lunghezza 4K byte tranne l'ultimo che ha lunghezza l byte con 0 &lt l &le 4K e pari al resto
- * della divisione euclidea della lunghezza totale del file per 4K.
+ * lunghezza {@link #pieceLength} byte tranne l'ultimo che ha lunghezza l byte con 0 &lt l &le
+ * {@link #pieceLength} e pari al resto della divisione euclidea della lunghezza totale del file per
+ * {@link #pieceLength}. La lunghezza dei pezzi dipende solo dalla lunghezza del file (vedi
+ * {@link #pieceLengthFor(long)}): e' la piu' piccola potenza di 2 compresa tra
+ * {@link #MIN_PIECE_LENGTH} e {@link #MAX_PIECE_LENGTH} che divide il file in al piu'
+ * {@link #TARGET_PIECES_NUMBER} pezzi.
+ * <p>
+ * Un descrittore puo' descrivere anche una directory ({@link #isDirectory()}): in questo caso il
+ * file descritto e' la concatenazione dei file contenuti nella directory e nelle sue
+ * sottodirectory, nell'ordine dei loro percorsi relativi (vedi {@link #listFiles(File)}), quindi un
+ * pezzo puo' contenere la fine di un file e l'inizio dei successivi. Tutti i file di un insieme di
+ * dati vengono cosi' scambiati in un solo sciame.
  * <p>
  * Ogni pezzo di file viene identificato in modo univoco da un offset che e' la posizione del primo
  * byte del pezzo all'interno del file o in altre parole e' il numero di byte che precedono il primo
@@ -35,8 +63,17 @@ public final class TorrentFile implements Serializable {
 
 	private static final long serialVersionUID = 5321775414524932152L;
 
-	/** dimensione dei pezzi del file */
-	public transient static final int PIECE_LENGTH = 1 << 12;
+	/** la lunghezza minima dei pezzi */
+	public static final int MIN_PIECE_LENGTH = 1 << 14;
+
+	/** la lunghezza massima dei pezzi */
+	public static final int MAX_PIECE_LENGTH = 1 << 22;
+
+	/** il numero di pezzi a cui tende la scelta della lunghezza dei pezzi */
+	public static final int TARGET_PIECES_NUMBER = 1 << 11;
+
+	/** la lunghezza dei pezzi del file */
+	public final int pieceLength;
 
 	/** il nome del file */
 	public final String fileName;
@@ -44,37 +81,127 @@ public final class TorrentFile implements Serializable {
 	/** la lunghezza del file */
 	public long fileLength;
 
-	/** la sequenza di hash dei pezzi del file */
-	private byte[][] sha1s;
+	/** il numero magico all'inizio della codifica di ogni descrittore */
+	private static final int MAGIC = 0x42435446;
+
+	/**
+	 * la versione della codifica dei descrittori; la versione 2 aggiunge i file delle directory
+	 * descritte, la versione 3 toglie il byte che indicava gli hash dei pezzi come radici di alberi
+	 * di Merkle
+	 */
+	private static final int VERSION = 3;
+
+	/** la posizione delle informazioni del file nella codifica */
+	private static final int INFO_OFFSET = 8;
+
+	/** la codifica dei nomi dei file */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * i percorsi relativi, separati da '/', dei file della directory descritta oppure
+	 * <code>null</code> se il descrittore descrive un solo file
+	 */
+	private String[] paths;
+
+	/** le lunghezze dei file della directory descritta oppure <code>null</code> */
+	private long[] lengths;
+
+	/**
+	 * le posizioni dei file della directory descritta nella loro concatenazione, piu' la
+	 * lunghezza totale, oppure <code>null</code>
+	 */
+	private transient long[] offsets;
+
+	/** l'hash delle informazioni del file, calcolato alla prima richiesta */
+	private transient volatile byte[] infoHash;
+
+	/** la lunghezza in byte dell'hash di un pezzo */
+	public static final int HASH_LENGTH = 20;
+
+	/**
+	 * la sequenza di hash dei pezzi del file, uno dopo l'altro in un unico array di
+	 * {@link #HASH_LENGTH} byte per pezzo. Non viene piu' modificata dopo la creazione del
+	 * descrittore, quindi puo' essere letta da piu' thread senza sincronizzazione.
+	 */
+	private byte[] hashes;
+
+	/** l'algoritmo di hash e i buffer usati da un thread per verificare i pezzi */
+	private static final class Verifier {
+
+		/** l'algoritmo di hash */
+		final MessageDigest sha1;
+
+		/** l'hash calcolato */
+		final byte[] digest = new byte[HASH_LENGTH];
+
+		/** l'hash atteso */
+		final byte[] expected = new byte[HASH_LENGTH];
+
+		Verifier() throws NoSuchAlgorithmException {
+			sha1 = MessageDigest.getInstance("SHA1");
+		}
+	}
+
+	/** per ogni thread l'algoritmo di hash e i buffer usati per verificare i pezzi */
+	private static final ThreadLocal<Verifier> VERIFIER = new ThreadLocal<Verifier>() {
+		@Override
+		protected Verifier initialValue() {
+			try {
+				return new Verifier();
+			} catch (NoSuchAlgorithmException e) {
+				throw new Error(e);
+			}
+		}
+	};
 
 	/** la porta dei trackers */
 	public int tPort = -1;
 
 	/**
-	 * Crea il descrittore del file di nome <param>fileName</param>.
+	 * Crea il descrittore del file di nome <param>fileName</param>. Gli hash dei pezzi vengono
+	 * calcolati in parallelo da un pool fork-join (vedi {@link HashTask}) che legge il file con
+	 * letture posizionali; durante il calcolo viene mostrata la percentuale di pezzi gia'
+	 * elaborati. Il numero di thread usati puo' essere scelto con la proprieta' di sistema
+	 * <code>bitCreek.hashThreads</code>, per default e' uguale al numero di processori.
+	 * <p>
+	 * Se <param>absoluteFileName</param> e' una directory il descrittore descrive tutti i file
+	 * che contiene.
 	 * 
 	 * @param fileName
 	 *            il nome del file di cui creare il descrittore.
+	 * @param absoluteFileName
+	 *            il percorso del file o della directory
 	 */
 	public TorrentFile(String fileName, String absoluteFileName) {
 		if (fileName == null)
 			throw new IllegalArgumentException(" null argument ");
 		this.fileName = fileName;
-		try {
-			File file = new File(absoluteFileName);
-			FileInputStream in = new FileInputStream(file);
+		File file = new File(absoluteFileName);
+		if (file.isDirectory()) {
+			paths = listFiles(file);
+			if (paths.length == 0)
+				throw new IllegalArgumentException(" empty directory " + absoluteFileName);
+			lengths = new long[paths.length];
+			for (int i = 0; i < paths.length; i++)
+				lengths[i] = getFile(file, i).length();
+			computeOffsets();
+			fileLength = offsets[paths.length];
+		} else {
 			fileLength = file.length();
-			int size = ((int) (fileLength / PIECE_LENGTH) + (fileLength % PIECE_LENGTH == 0 ? 0 : 1));
-			sha1s = new byte[size][];
-			byte[] buffer = new byte[TorrentFile.PIECE_LENGTH];
-			for (int i = 0; i < size; i++) {
-				MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-				DigestOutputStream dout = new DigestOutputStream(new ByteArrayOutputStream(), sha1);
-				int readByte = in.read(buffer);
-				dout.write(buffer, 0, readByte);
-				dout.flush();
-				sha1s[i] = dout.getMessageDigest().digest();
-				dout.close();
+		}
+		this.pieceLength = pieceLengthFor(fileLength);
+		try {
+			int size = (int) ((fileLength + pieceLength - 1) / pieceLength);
+			hashes = new byte[size * HASH_LENGTH];
+			int threads = Integer.getInteger("bitCreek.hashThreads", Runtime.getRuntime()
+					.availableProcessors());
+			if (size > 0) {
+				ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+				try {
+					pool.invoke(new HashTask(file, 0, size, new AtomicInteger()));
+				} finally {
+					pool.shutdown();
+				}
 			}
 			System.out.println();
 		} catch (Exception e) {
@@ -83,6 +210,470 @@ public final class TorrentFile implements Serializable {
 		}
 	}
 
+	/**
+	 * Crea un descrittore a partire dai suoi campi gia' decodificati.
+	 */
+	private TorrentFile(String fileName, long fileLength, int pieceLength, byte[] hashes,
+			String[] paths, long[] lengths, int tPort) {
+		this.fileName = fileName;
+		this.fileLength = fileLength;
+		this.pieceLength = pieceLength;
+		this.hashes = hashes;
+		this.paths = paths;
+		this.lengths = lengths;
+		this.tPort = tPort;
+		if (paths != null)
+			computeOffsets();
+	}
+
+	/** calcola le posizioni dei file della directory descritta */
+	private void computeOffsets() {
+		offsets = new long[paths.length + 1];
+		for (int i = 0; i < paths.length; i++)
+			offsets[i + 1] = offsets[i] + lengths[i];
+	}
+
+	/**
+	 * Restituisce <code>true</code> se il descrittore descrive una directory; altrimenti
+	 * <code>false</code>.
+	 * 
+	 * @return <code>true</code> se il descrittore descrive una directory; altrimenti
+	 *         <code>false</code>.
+	 */
+	public boolean isDirectory() {
+		return paths != null;
+	}
+
+	/**
+	 * Restituisce il numero di file descritti, 1 se il descrittore non descrive una directory.
+	 * 
+	 * @return il numero di file descritti.
+	 */
+	public int getFilesNumber() {
+		return paths == null ? 1 : paths.length;
+	}
+
+	/**
+	 * Restituisce il percorso relativo, separato da '/', del file di indice <param>index</param>
+	 * della directory descritta, oppure il nome del file se il descrittore non descrive una
+	 * directory.
+	 * 
+	 * @param index
+	 *            l'indice del file
+	 * @return il percorso relativo del file di indice <param>index</param>.
+	 */
+	public String getFilePath(int index) {
+		return paths == null ? fileName : paths[index];
+	}
+
+	/**
+	 * Restituisce la lunghezza del file di indice <param>index</param>.
+	 * 
+	 * @param index
+	 *            l'indice del file
+	 * @return la lunghezza del file di indice <param>index</param>.
+	 */
+	public long getFileLength(int index) {
+		return paths == null ? fileLength : lengths[index];
+	}
+
+	/**
+	 * Restituisce la posizione del primo byte del file di indice <param>index</param> nella
+	 * concatenazione dei file descritti.
+	 * 
+	 * @param index
+	 *            l'indice del file
+	 * @return la posizione del file di indice <param>index</param>.
+	 */
+	public long getFileOffset(int index) {
+		return paths == null ? 0 : offsets[index];
+	}
+
+	/**
+	 * Restituisce il file di indice <param>index</param> tra quelli descritti, se la directory o
+	 * il file descritto si trovano in <param>root</param>.
+	 * 
+	 * @param root
+	 *            la directory descritta oppure il file descritto
+	 * @param index
+	 *            l'indice del file
+	 * @return il file di indice <param>index</param>.
+	 */
+	public File getFile(File root, int index) {
+		return paths == null ? root : new File(root, paths[index].replace('/',
+				File.separatorChar));
+	}
+
+	/**
+	 * Restituisce i percorsi relativi, separati da '/', di tutti i file contenuti nella directory
+	 * <param>dir</param> e nelle sue sottodirectory in ordine lessicografico. E' l'ordine in cui i
+	 * file di una directory vengono concatenati.
+	 * 
+	 * @param dir
+	 *            la directory
+	 * @return i percorsi relativi dei file contenuti in <param>dir</param>.
+	 */
+	public static String[] listFiles(File dir) {
+		ArrayList<String> paths = new ArrayList<String>();
+		listFiles(dir, "", paths);
+		Collections.sort(paths);
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	private static void listFiles(File dir, String prefix, ArrayList<String> paths) {
+		String[] entries = dir.list();
+		if (entries == null)
+			throw new IllegalArgumentException(" unable to list directory " + dir);
+		for (String entry : entries) {
+			if (new File(dir, entry).isDirectory())
+				listFiles(new File(dir, entry), prefix + entry + "/", paths);
+			else
+				paths.add(prefix + entry);
+		}
+	}
+
+	/**
+	 * restituisce <code>true</code> se <param>path</param> e' un percorso relativo valido che non
+	 * esce dalla directory descritta
+	 */
+	private static boolean isValidPath(String path) {
+		if (path.length() == 0 || path.indexOf('\\') >= 0)
+			return false;
+		for (String component : path.split("/", -1))
+			if (component.length() == 0 || component.equals(".") || component.equals(".."))
+				return false;
+		return true;
+	}
+
+	/**
+	 * legge i byte del contenuto descritto a partire dalla posizione <param>position</param> e li
+	 * copia nei byte rimanenti di <param>buffer</param>; il file o la directory descritti si
+	 * trovano in <param>root</param>
+	 */
+	private void readContent(File root, ByteBuffer buffer, long position) throws IOException {
+		int index = 0;
+		if (paths != null) {
+			int high = paths.length - 1;
+			while (index < high) {
+				int middle = (index + high + 1) >>> 1;
+				if (offsets[middle] <= position)
+					index = middle;
+				else
+					high = middle - 1;
+			}
+		}
+		for (; buffer.hasRemaining() && index < getFilesNumber(); index++) {
+			long end = getFileOffset(index) + getFileLength(index);
+			if (position >= end)
+				continue;
+			FileInputStream in = new FileInputStream(getFile(root, index));
+			try {
+				FileChannel channel = in.getChannel();
+				int limit = buffer.limit();
+				buffer.limit((int) Math.min(limit, buffer.position() + end - position));
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position - getFileOffset(index));
+					if (read < 0)
+						throw new IOException(" file " + getFile(root, index)
+								+ " truncated while hashing ");
+					position += read;
+				}
+				buffer.limit(limit);
+			} finally {
+				in.close();
+			}
+		}
+		if (buffer.hasRemaining())
+			throw new IOException(" file " + fileName + " truncated while hashing ");
+	}
+
+	/**
+	 * Restituisce la codifica binaria compatta di questo descrittore (vedi
+	 * {@link #decode(ByteBuffer)}).
+	 * 
+	 * @return la codifica binaria compatta di questo descrittore.
+	 */
+	public byte[] encode() {
+		byte[] name = fileName.getBytes(UTF8);
+		byte[][] encodedPaths = new byte[paths == null ? 0 : paths.length][];
+		int pathsLength = 0;
+		for (int i = 0; i < encodedPaths.length; i++) {
+			encodedPaths[i] = paths[i].getBytes(UTF8);
+			pathsLength += 12 + encodedPaths[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(INFO_OFFSET + 4 + name.length + 16
+				+ hashes.length + 4 + pathsLength + 4);
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(name.length).put(name).putLong(fileLength).putInt(pieceLength).putInt(
+				getPiecesNumber()).put(hashes);
+		buffer.putInt(encodedPaths.length);
+		for (int i = 0; i < encodedPaths.length; i++)
+			buffer.putInt(encodedPaths[i].length).put(encodedPaths[i]).putLong(lengths[i]);
+		buffer.putInt(tPort);
+		return buffer.array();
+	}
+
+	/**
+	 * Decodifica un descrittore dai byte rimanenti di <param>buffer</param>. La codifica e' fatta
+	 * di:
+	 * <ul>
+	 * <li>4 byte: il numero magico {@link #MAGIC}</li>
+	 * <li>4 byte: la versione della codifica</li>
+	 * <li>4 byte: la lunghezza n della codifica UTF-8 del nome del file, seguiti dagli n byte</li>
+	 * <li>8 byte: la lunghezza del file</li>
+	 * <li>4 byte: la lunghezza dei pezzi</li>
+	 * <li>4 byte: il numero p di pezzi, seguiti dai p * {@link #HASH_LENGTH} byte degli hash</li>
+	 * <li>4 byte: il numero f di file della directory descritta, 0 se il descrittore descrive un
+	 * solo file, seguiti per ogni file da 4 byte con la lunghezza n della codifica UTF-8 del
+	 * percorso relativo, dagli n byte e da 8 byte con la lunghezza del file</li>
+	 * <li>4 byte: la porta dei trackers</li>
+	 * </ul>
+	 * Tutti i campi tra la versione e la porta dei trackers formano le informazioni del file, il
+	 * cui hash identifica il file (vedi {@link #getInfoHash()}). La tabella degli hash viene
+	 * copiata con una sola lettura.
+	 * 
+	 * @param buffer
+	 *            il buffer che contiene la codifica
+	 * @return il descrittore decodificato
+	 * @throws IllegalArgumentException
+	 *             se <param>buffer</param> non contiene la codifica di un descrittore
+	 */
+	public static TorrentFile decode(ByteBuffer buffer) throws IllegalArgumentException {
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IllegalArgumentException(" not a torrent file encoding ");
+			int nameLength = buffer.getInt();
+			if (nameLength < 0 || nameLength > buffer.remaining())
+				throw new IllegalArgumentException(" invalid file name length " + nameLength);
+			byte[] name = new byte[nameLength];
+			buffer.get(name);
+			long fileLength = buffer.getLong();
+			int pieceLength = buffer.getInt();
+			int piecesNumber = buffer.getInt();
+			if (fileLength < 0 || pieceLength != pieceLengthFor(fileLength)
+					|| piecesNumber != (fileLength + pieceLength - 1) / pieceLength)
+				throw new IllegalArgumentException(" inconsistent torrent file encoding ");
+			if ((long) piecesNumber * HASH_LENGTH > buffer.remaining())
+				throw new IllegalArgumentException(" truncated torrent file encoding ");
+			byte[] hashes = new byte[piecesNumber * HASH_LENGTH];
+			buffer.get(hashes);
+			int filesNumber = buffer.getInt();
+			if (filesNumber < 0 || filesNumber > buffer.remaining() / 12)
+				throw new IllegalArgumentException(" invalid files number " + filesNumber);
+			String[] paths = null;
+			long[] lengths = null;
+			if (filesNumber > 0) {
+				paths = new String[filesNumber];
+				lengths = new long[filesNumber];
+				long total = 0;
+				for (int i = 0; i < filesNumber; i++) {
+					int pathLength = buffer.getInt();
+					if (pathLength < 0 || pathLength > buffer.remaining())
+						throw new IllegalArgumentException(" invalid path length " + pathLength);
+					byte[] path = new byte[pathLength];
+					buffer.get(path);
+					paths[i] = new String(path, UTF8);
+					lengths[i] = buffer.getLong();
+					if (!isValidPath(paths[i]) || lengths[i] < 0
+							|| (i > 0 && paths[i].compareTo(paths[i - 1]) <= 0))
+						throw new IllegalArgumentException(" invalid file " + paths[i]);
+					total += lengths[i];
+				}
+				if (total != fileLength)
+					throw new IllegalArgumentException(" inconsistent torrent file encoding ");
+			}
+			int tPort = buffer.getInt();
+			return new TorrentFile(new String(name, UTF8), fileLength, pieceLength, hashes,
+					paths, lengths, tPort);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException(" truncated torrent file encoding ");
+		}
+	}
+
+	/**
+	 * Restituisce l'hash SHA1 delle informazioni del file contenute nella codifica di questo
+	 * descrittore: il nome, la lunghezza del file e dei pezzi, il tipo di hash, gli hash dei pezzi
+	 * e gli eventuali file della directory descritta. Due descrittori con lo stesso hash delle
+	 * informazioni descrivono lo stesso contenuto.
+	 * 
+	 * @return l'hash delle informazioni del file.
+	 */
+	public byte[] getInfoHash() {
+		byte[] infoHash = this.infoHash;
+		if (infoHash == null) {
+			byte[] encoded = encode();
+			MessageDigest sha1 = VERIFIER.get().sha1;
+			sha1.reset();
+			sha1.update(encoded, INFO_OFFSET, encoded.length - INFO_OFFSET - 4);
+			this.infoHash = infoHash = sha1.digest();
+		}
+		return infoHash.clone();
+	}
+
+	/**
+	 * Salva la codifica di questo descrittore nel file <param>file</param>.
+	 * 
+	 * @param file
+	 *            il file in cui salvare il descrittore
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(encode());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Legge un descrittore salvato con {@link #save(File)} senza ricalcolare gli hash dei pezzi.
+	 * 
+	 * @param file
+	 *            il file che contiene il descrittore
+	 * @return il descrittore letto
+	 * @throws IOException
+	 *             se non e' possibile leggere il file o se il file non contiene un descrittore
+	 */
+	public static TorrentFile load(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(" file " + file + " is not a torrent file ");
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					throw new IOException(" file " + file + " truncated ");
+			buffer.flip();
+			return decode(buffer);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(" file " + file + " is not a torrent file: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Serializza il descrittore come la sua codifica compatta (vedi {@link SerializedForm}).
+	 */
+	private Object writeReplace() {
+		return new SerializedForm(encode());
+	}
+
+	private void readObject(ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException(" serialized form required ");
+	}
+
+	/**
+	 * La forma serializzata di un descrittore: la sua codifica compatta, che viaggia via RMI come
+	 * un solo array di byte invece di un oggetto con un array per ogni pezzo.
+	 */
+	private static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 2607916337584096474L;
+
+		/** la codifica del descrittore */
+		private final byte[] encoded;
+
+		SerializedForm(byte[] encoded) {
+			this.encoded = encoded;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				return decode(ByteBuffer.wrap(encoded));
+			} catch (IllegalArgumentException e) {
+				throw new InvalidObjectException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Restituisce la lunghezza dei pezzi di un file di <param>fileLength</param> byte: la piu'
+	 * piccola potenza di 2 compresa tra {@link #MIN_PIECE_LENGTH} e {@link #MAX_PIECE_LENGTH}
+	 * che divide il file in al piu' {@link #TARGET_PIECES_NUMBER} pezzi, oppure
+	 * {@link #MAX_PIECE_LENGTH} se non ce ne sono.
+	 * 
+	 * @param fileLength
+	 *            la lunghezza del file
+	 * @return la lunghezza dei pezzi di un file di <param>fileLength</param> byte.
+	 */
+	public static int pieceLengthFor(long fileLength) {
+		int length = MIN_PIECE_LENGTH;
+		while (length < MAX_PIECE_LENGTH && (long) length * TARGET_PIECES_NUMBER < fileLength)
+			length <<= 1;
+		return length;
+	}
+
+	/**
+	 * Calcola gli hash di un intervallo di pezzi del file. Se l'intervallo contiene piu' di un
+	 * pezzo e piu' di {@link #BYTES_PER_TASK} byte viene diviso a meta' e le due meta' vengono
+	 * calcolate in parallelo, altrimenti i pezzi vengono letti con una sola lettura posizionale e
+	 * gli hash vengono calcolati uno dopo l'altro.
+	 */
+	private final class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -2984404398731513707L;
+
+		/** il numero di byte oltre il quale un intervallo di piu' pezzi viene diviso */
+		private static final int BYTES_PER_TASK = 1 << 20;
+
+		/** il file o la directory descritti */
+		private final File root;
+
+		/** l'indice del primo pezzo dell'intervallo */
+		private final int from;
+
+		/** l'indice del primo pezzo dopo l'intervallo */
+		private final int to;
+
+		/** il numero di pezzi del file gia' elaborati */
+		private final AtomicInteger done;
+
+		HashTask(File root, int from, int to, AtomicInteger done) {
+			this.root = root;
+			this.from = from;
+			this.to = to;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && (long) (to - from) * pieceLength > BYTES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HashTask(root, from, middle, done), new HashTask(root, middle, to,
+						done));
+				return;
+			}
+			try {
+				long position = (long) from * pieceLength;
+				ByteBuffer buffer = ByteBuffer.allocate((int) (Math.min((long) to * pieceLength,
+						fileLength) - position));
+				readContent(root, buffer, position);
+				MessageDigest sha1 = VERIFIER.get().sha1;
+				sha1.reset();
+				for (int i = from; i < to; i++) {
+					int offset = (i - from) * pieceLength;
+					int length = Math.min(pieceLength, buffer.capacity() - offset);
+					sha1.update(buffer.array(), offset, length);
+					sha1.digest(hashes, i * HASH_LENGTH, HASH_LENGTH);
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			showProgress(done.addAndGet(to - from));
+		}
+
+		/** mostra la percentuale di pezzi elaborati quando cambia */
+		private void showProgress(int hashed) {
+			int pieces = getPiecesNumber();
+			int percent = (int) (100L * hashed / pieces);
+			if (percent != (int) (100L * (hashed - (to - from)) / pieces))
+				System.out.print("\rhashing " + fileName + ": " + percent + "%");
+		}
+	}
+
 	/**
 	 * Un istanza di questa classe e un altro oggetto sono uguali se e solo se hanno lo stesso tipo
 	 * e il nome del file e' uguale carattere per carattere.
@@ -92,17 +683,26 @@ public final class TorrentFile implements Serializable {
 	 *         <code>other.fileName</code>; altrimenti restituisce <code>false</code>.
 	 */
 	@Override
-	synchronized public boolean equals(Object other) {
-		if (other == null)
-			throw new IllegalArgumentException(" null argument ");
+	public boolean equals(Object other) {
+		if (!(other instanceof TorrentFile))
+			return false;
 		return ((TorrentFile) other).fileName.equals(this.fileName);
 	}
+
+	/**
+	 * Il codice hash dipende solo dal nome del file, coerentemente con {@link #equals(Object)}.
+	 */
+	@Override
+	public int hashCode() {
+		return fileName.hashCode();
+	}
 		
 	/**
 	 * restituisce la lunghezza in byte del pezzo di offset <param>offset</param> del file
 	 * descritto da questo descrittore. Tutti i pezzi in cui viene diviso un file hanno dimensione
-	 * 4K eccetto l'ultimo pezzo che avra' dimensione compresa tra 0 e 4K e pari al resto della
-	 * divisione intera tra la lunghezza totale del file e 4K.
+	 * {@link #pieceLength} eccetto l'ultimo pezzo che avra' dimensione compresa tra 0 e
+	 * {@link #pieceLength} e pari al resto della divisione intera tra la lunghezza totale del file
+	 * e {@link #pieceLength}.
 	 * 
 	 * @param offset
 	 *            la posizione del primo byte del pezzo all'interno del file misurata in byte. In
@@ -112,9 +712,9 @@ public final class TorrentFile implements Serializable {
 	 * @return la lunghezza in byte del pezzo di offset <param>offset</param> del file descritto da
 	 *         questo descrittore.
 	 */
-	synchronized public int getLengthOfPiece(long offset) {
-		if (offset < this.fileLength - PIECE_LENGTH)
-			return PIECE_LENGTH;
+	public int getLengthOfPiece(long offset) {
+		if (offset < this.fileLength - pieceLength)
+			return pieceLength;
 		return (int) (this.fileLength - offset);
 	}
 
@@ -123,13 +723,17 @@ public final class TorrentFile implements Serializable {
 	 * 
 	 * @return il numero di pezzi in cui e' scomposto il file descritto da questo descrittore.
 	 */
-	synchronized public int getPiecesNumber() {
-		return sha1s.length;
+	public int getPiecesNumber() {
+		return hashes.length / HASH_LENGTH;
 	}
 
 	/**
 	 * controlla se l'hash calcolato dal peer che ha publicato il file e quello calcolato sul pezzo
-	 * scaricato sono uguali. Il confronto avviene byte per byte.
+	 * scaricato sono uguali. Il confronto avviene con
+	 * {@link MessageDigest#isEqual(byte[], byte[])}.
+	 * <p>
+	 * Il controllo non acquisisce nessun lock e non alloca memoria: ogni thread usa sempre lo
+	 * stesso algoritmo di hash e gli stessi buffer.
 	 * 
 	 * @param offset
 	 *            l'offset del pezzo scaricato
@@ -138,33 +742,37 @@ public final class TorrentFile implements Serializable {
 	 * @return <code>true</code> se l'hash del pezzo scaricato e' uguale a quello che trova nel
 	 *         descrittore publicato sul server; altrimenti <code>false</code>.
 	 */
-	synchronized public boolean hashsMatch(long offset, byte[] piece) {
-		if (offset % TorrentFile.PIECE_LENGTH != 0)
+	public boolean hashsMatch(long offset, byte[] piece) {
+		if (offset % pieceLength != 0)
 			throw new IllegalArgumentException("offset is not multiple of piece length");
+		int length = getLengthOfPiece(offset);
+		Verifier verifier = VERIFIER.get();
+		verifier.sha1.reset();
 		try {
-			MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-			DigestOutputStream dout = new DigestOutputStream(new ByteArrayOutputStream(), sha1);
-			dout.write(piece, 0, getLengthOfPiece(offset));
-			dout.flush();
-			byte[] digest = dout.getMessageDigest().digest();
-			dout.close();
-			byte[] torrentDigest = sha1s[(int) (offset / TorrentFile.PIECE_LENGTH)];
-			if (digest.length != torrentDigest.length)
-				return false;
-			for (int i = 0; i < digest.length; i++)
-				if (torrentDigest[i] != digest[i])
-					return false;
-		} catch (Exception e) {
+			verifier.sha1.update(piece, 0, length);
+			verifier.sha1.digest(verifier.digest, 0, HASH_LENGTH);
+		} catch (DigestException e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
-		return true;
+		return MessageDigest.isEqual(verifier.digest, expectedHash(offset, verifier));
+	}
+
+	/**
+	 * copia l'hash del pezzo di offset <param>offset</param> nel buffer dell'hash atteso di
+	 * <param>verifier</param> e lo restituisce
+	 */
+	private byte[] expectedHash(long offset, Verifier verifier) {
+		System.arraycopy(hashes, (int) (offset / pieceLength) * HASH_LENGTH, verifier.expected, 0,
+				HASH_LENGTH);
+		return verifier.expected;
 	}
 
 	@Override
-	synchronized public String toString() {
+	public String toString() {
 		return TorrentFile.class.getCanonicalName() + "[file name=" + fileName + ", file length="
-				+ fileLength + ", tcp port=" + tPort + ", udp port=" + tPort + "]";
+				+ fileLength + ", piece length=" + pieceLength + ", tcp port="
+				+ tPort + ", udp port=" + tPort + "]";
 	}
 
 }
@@ -12,18 +12,22 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
+import java.nio.channels.SeekableByteChannel;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import bitCreekCommon.Peer;
+import bitCreekCommon.PieceBitfield;
 import bitCreekCommon.ServerToPeerRemoteInterface;
 import bitCreekCommon.TorrentFile;
 
@@ -49,11 +53,16 @@ public class BitCreekPeer {
 	/** interfaccia di output e di log */
 	private OutInterface log;
 
-	/** memorizza le associazioni torrent - client che scarica il file associato */
-	private HashMap<TorrentFile, Peer2PeerClient> retrieversMap;
+	/**
+	 * memorizza per ogni nome di file il client che lo scarica. La chiave e' il nome del file come
+	 * per lo stato dei file in {@link FileManager}: due descrittori sono uguali se e solo se i nomi
+	 * coincidono (vedi {@link TorrentFile#equals(Object)}) e il nome e' tutto cio' che serve per
+	 * trovare lo scaricatore di un file.
+	 */
+	private HashMap<String, Peer2PeerClient> retrieversMap;
 
-	/** lista si peer non fidati */
-	private ArrayList<Peer> bannedList;
+	/** lista si peer non fidati, condivisa da tutti gli scaricatori */
+	private Set<Peer> bannedList;
 
 	/** indrizzo di questo peer */
 	private InetAddress peerAddress;
@@ -80,8 +89,8 @@ public class BitCreekPeer {
 			new ClientIOConsole(this);
 			log = new ConsoleOut();
 			fileManager = new FileManager();
-			bannedList = new ArrayList<Peer>();
-			retrieversMap = new HashMap<TorrentFile, Peer2PeerClient>();
+			bannedList = Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>());
+			retrieversMap = new HashMap<String, Peer2PeerClient>();
 
 			Registry remoteServerRegistry = LocateRegistry.getRegistry(serverAddress);
 			serverRemote = (ServerToPeerRemoteInterface) remoteServerRegistry
@@ -194,6 +203,7 @@ public class BitCreekPeer {
 	 * <p> -- interrompe l'interprete dei comandi
 	 * <p> -- interrompe l'invio di tutti i messaggi di keep-alive
 	 * <p> -- interrompe il server p2p
+	 * <p> -- chiude i file di appoggio e i relativi indici di ripresa
 	 * 
 	 * @see CommandInterpreter
 	 */
@@ -221,6 +231,7 @@ public class BitCreekPeer {
 			} catch (InterruptedException e) {
 			}
 		}
+		fileManager.close();
 	}
 
 	/**
@@ -233,14 +244,21 @@ public class BitCreekPeer {
 	 */
 	void leaveSwarm(TorrentFile torrent) {
 		keepAlives.remove(torrent.fileName);
+		stopRetriever(torrent);
+	}
+
+	/**
+	 * interrompe il client peer to peer che scarica il file associato al descrittore
+	 * <param>torrent</param>, se c'e', e attende che termini
+	 */
+	private void stopRetriever(TorrentFile torrent) {
 		Peer2PeerClient retriever;
-		if ((retriever = retrieversMap.get(torrent)) != null) {
+		if ((retriever = retrieversMap.remove(torrent.fileName)) != null) {
 			retriever.interrupt();
 			try {
 				retriever.join();
 			} catch (InterruptedException e) {
 			}
-			retrieversMap.remove(torrent);
 		}
 	}
 
@@ -269,7 +287,8 @@ public class BitCreekPeer {
 	}
 
 	/**
-	 * publica il file di nome <param>fileName</param>
+	 * publica il file di nome <param>fileName</param>. Se il descrittore del file e' gia' stato
+	 * salvato viene riusato senza ricalcolare gli hash, altrimenti viene creato e salvato.
 	 * 
 	 * @param fileName
 	 *            il file da publicare
@@ -284,8 +303,12 @@ public class BitCreekPeer {
 			if (!fileManager.hasACompleteCopy(fileName))
 				throw new UnableToPublishException(
 						"attemp to publish a file the peer is not a seeder of");
-			TorrentFile torrent = new TorrentFile(fileName, fileManager
-					.getAbsolutePathOfCompleteFile(fileName));
+			TorrentFile torrent = fileManager.loadTorrent(fileName);
+			if (torrent == null) {
+				torrent = new TorrentFile(fileName, fileManager
+						.getAbsolutePathOfCompleteFile(fileName));
+				fileManager.saveTorrent(torrent);
+			}
 			torrent.tPort = serverRemote.publish(torrent,
 					new Peer(peerAddress, p2pServer.getPort()));
 			keepAlives.addKeepAliveMessage(torrent.tPort, torrent.fileName, p2pServer.getPort());
@@ -297,19 +320,104 @@ public class BitCreekPeer {
 
 	/**
 	 * avvia un client peer to peer che tenta di scaricare il file associato al descrittore
-	 * <param>torrent</param>
+	 * <param>torrent</param>. Se il file e' gia' in corso di scaricamento per intero non fa
+	 * niente; uno scaricamento in corso solo di alcuni pezzi viene sostituito.
 	 * 
 	 * @param torrent
 	 *            il torrent associato al file da scaricare
 	 */
 	void retrieve(TorrentFile torrent) {
+		if (torrent == null)
+			throw new IllegalArgumentException(" null torrent ");
+		Peer2PeerClient retriever;
+		if ((retriever = retrieversMap.get(torrent.fileName)) != null && retriever.isAlive()
+				&& retriever.getWanted() == null)
+			return;
+		stopRetriever(torrent);
+		retrieve(torrent, false, null);
+	}
+
+	/**
+	 * Apre un canale in sola lettura sul file associato al descrittore <param>torrent</param>
+	 * che puo' essere letto mentre viene scaricato: se il peer non possiede una copia completa
+	 * del file avvia un client peer to peer che scarica per primi i pezzi che seguono la
+	 * posizione di lettura del canale. Una lettura si blocca solo se il pezzo da leggere non e'
+	 * ancora stato scaricato. Uno scaricamento in corso del file non sequenziale o solo di alcuni
+	 * pezzi viene sostituito da uno scaricamento sequenziale di tutto il file.
+	 * 
+	 * @param torrent
+	 *            il torrent associato al file da leggere
+	 * @return il canale aperto, da cui si puo' ottenere uno stream con
+	 *         {@link java.nio.channels.Channels}
+	 */
+	SeekableByteChannel stream(TorrentFile torrent) {
+		if (torrent == null)
+			throw new IllegalArgumentException(" null torrent ");
+		SeekableByteChannel channel = fileManager.openChannel(torrent);
+		if (fileManager.hasACompleteCopy(torrent))
+			return channel;
+		Peer2PeerClient retriever;
+		if ((retriever = retrieversMap.get(torrent.fileName)) != null && retriever.isAlive()
+				&& retriever.isSequential() && retriever.getWanted() == null)
+			return channel;
+		stopRetriever(torrent);
+		retrieve(torrent, true, null);
+		return channel;
+	}
+
+	/**
+	 * Scarica e verifica solo i pezzi del file associato al descrittore <param>torrent</param>
+	 * che coprono gli intervalli di byte che iniziano alle posizioni <param>offsets</param> e sono
+	 * lunghi <param>lengths</param>, e apre un canale in sola lettura sul file da cui leggere i
+	 * byte richiesti. I pezzi vengono scritti alla loro posizione nel file di appoggio, che non
+	 * occupa spazio su disco per i pezzi mancanti; una lettura si blocca solo se il pezzo da
+	 * leggere non e' ancora stato scaricato e non termina mai se il pezzo non e' tra quelli
+	 * richiesti. Se il file e' gia' in corso di scaricamento solo in parte, lo scaricamento viene
+	 * ripreso con anche i nuovi intervalli.
+	 * 
+	 * @param torrent
+	 *            il torrent associato al file da leggere
+	 * @param offsets
+	 *            le posizioni dei primi byte degli intervalli
+	 * @param lengths
+	 *            le lunghezze degli intervalli
+	 * @return il canale aperto
+	 * @throws IllegalArgumentException
+	 *             se un intervallo non e' contenuto nel file
+	 */
+	SeekableByteChannel retrieveRanges(TorrentFile torrent, long[] offsets, long[] lengths)
+			throws IllegalArgumentException {
+		if (torrent == null || offsets == null || lengths == null)
+			throw new IllegalArgumentException(" null argument ");
+		PieceBitfield wanted = PiecesChooser.piecesCovering(torrent, offsets, lengths);
+		SeekableByteChannel channel = fileManager.openChannel(torrent);
+		if (fileManager.hasPieces(torrent, wanted))
+			return channel;
+		Peer2PeerClient retriever;
+		if ((retriever = retrieversMap.get(torrent.fileName)) != null && retriever.isAlive()) {
+			if (retriever.getWanted() == null)
+				return channel;
+			/* lo scaricamento in corso viene sostituito da uno che comprende tutti i pezzi */
+			wanted.or(retriever.getWanted());
+		}
+		stopRetriever(torrent);
+		retrieve(torrent, false, wanted);
+		return channel;
+	}
+
+	/**
+	 * avvia un client peer to peer che tenta di scaricare il file associato al descrittore
+	 * <param>torrent</param>, in ordine di lettura se <param>sequential</param> e'
+	 * <code>true</code>, oppure solo i pezzi <param>wanted</param> se non e' <code>null</code>
+	 */
+	private void retrieve(TorrentFile torrent, boolean sequential, PieceBitfield wanted) {
 		if (torrent == null)
 			throw new IllegalArgumentException(" null torrent ");
 		try {
 			Peer2PeerClient retreiver = new Peer2PeerClient(torrent, log, fileManager, bannedList,
-					serverAddress);
+					serverAddress, p2pServer, sequential, wanted);
 			this.join(torrent);
-			retrieversMap.put(torrent, retreiver);
+			retrieversMap.put(torrent.fileName, retreiver);
 			retreiver.start();
 		} catch (UnableToJoinSwarmException e) {
 			log.println("unable to retrieve file " + torrent.fileName + ": unable to join swarm");
@@ -324,10 +432,19 @@ public class BitCreekPeer {
 	 * 
 	 * @return l'elenco del file e delle parti di file possedute.
 	 */
-	public Set<Entry<String, ArrayList<Long>>> getOwned() {
+	public Set<Entry<String, PieceBitfield>> getOwned() {
 		return fileManager.getOwned();
 	}
 
+	/**
+	 * Restituisce le statistiche della cache dei pezzi inviati agli altri peer.
+	 * 
+	 * @return le statistiche della cache dei pezzi inviati agli altri peer.
+	 */
+	public String getCacheStatistics() {
+		return fileManager.getCacheStatistics();
+	}
+
 	/**
 	 * Restituisce tutti gli swarm di cui fa parte questo peer.
 	 * 
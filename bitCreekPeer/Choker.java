@@ -0,0 +1,278 @@
+package bitCreekPeer;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bitCreekCommon.Peer;
+
+/**
+ * Decide a quali peer client il server del peer invia pezzi (politica tit-for-tat). Al piu'
+ * <code>bitCreek.uploadSlots</code> connessioni (per default {@link #DEFAULT_UPLOAD_SLOTS})
+ * vengono servite, le altre vengono strozzate: il server scarta le loro richieste.
+ * <p>
+ * Ogni {@link #RECHOKE_PERIOD_MILLIS} millisecondi le connessioni vengono ordinate per il numero
+ * di byte che il peer ha scaricato nell'ultimo periodo dal peer client (vedi
+ * {@link #received(Peer, int)}) e, a parita', per il numero di byte che il server gli ha inviato;
+ * vengono servite le prime. Inoltre ogni {@link #OPTIMISTIC_PERIODS} periodi viene scelta a caso
+ * una connessione strozzata che viene servita per i periodi successivi indipendentemente dalla sua
+ * posizione, cosi' che un peer appena arrivato possa dimostrare di essere un buon partner. Quando
+ * una connessione si apre o si chiude i posti liberi vengono assegnati subito.
+ * <p>
+ * I byte scaricati vengono registrati per il peer server da cui sono stati scaricati, come lo ha
+ * comunicato il tracker, mentre il peer client di una connessione e' costruito dall'indirizzo
+ * della socket e dalla porta che il client ha inviato. Entrambi vengono quindi confrontati
+ * attraverso la loro identita' (vedi {@link #identity(Peer)}): l'indirizzo e la porta su cui e'
+ * in ascolto il server del peer, con gli indirizzi di questo host ricondotti a uno solo.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class Choker extends Thread {
+
+	/** una connessione in upload che puo' essere strozzata */
+	interface Uploader {
+
+		/**
+		 * Restituisce il peer client della connessione: l'indirizzo della socket e la porta su cui
+		 * e' in ascolto il suo server.
+		 * 
+		 * @return il peer client della connessione.
+		 */
+		Peer getPeer();
+
+		/**
+		 * Restituisce il numero di byte inviati dall'ultima chiamata e lo azzera.
+		 * 
+		 * @return il numero di byte inviati dall'ultima chiamata.
+		 */
+		long takeSentBytes();
+
+		/**
+		 * Strozza la connessione se <param>choked</param> e' <code>true</code>, altrimenti
+		 * ricomincia a servirla. Non deve bloccarsi.
+		 * 
+		 * @param choked
+		 *            <code>true</code> se la connessione deve essere strozzata
+		 */
+		void setChoked(boolean choked);
+	}
+
+	/** il numero di default di connessioni servite */
+	private static final int DEFAULT_UPLOAD_SLOTS = 4;
+
+	/** il numero di connessioni servite, esclusa quella scelta a caso */
+	private static final int UPLOAD_SLOTS = Math.max(1, Integer.getInteger("bitCreek.uploadSlots",
+			DEFAULT_UPLOAD_SLOTS));
+
+	/** ogni quanti millisecondi vengono scelte le connessioni da servire */
+	private static final long RECHOKE_PERIOD_MILLIS = 10000;
+
+	/** ogni quanti periodi viene scelta a caso una nuova connessione da servire */
+	private static final int OPTIMISTIC_PERIODS = 3;
+
+	/** le connessioni aperte, nell'ordine di apertura */
+	private final ArrayList<Uploader> uploaders;
+
+	/** le connessioni servite, compresa quella scelta a caso */
+	private final HashSet<Uploader> unchoked;
+
+	/** la connessione servita scelta a caso oppure <code>null</code> */
+	private Uploader optimistic;
+
+	/** il numero di byte scaricati da ogni peer dall'ultima scelta */
+	private final ConcurrentHashMap<Peer, AtomicLong> receivedMap;
+
+	private final Random random;
+
+	/** il numero di scelte fatte */
+	private int rounds;
+
+	/** <code>true</code> se il thread e' stato terminato */
+	private boolean closed;
+
+	Choker() {
+		super("choker");
+		setDaemon(true);
+		this.uploaders = new ArrayList<Uploader>();
+		this.unchoked = new HashSet<Uploader>();
+		this.receivedMap = new ConcurrentHashMap<Peer, AtomicLong>();
+		this.random = new Random();
+	}
+
+	/**
+	 * Registra che sono stati scaricati <param>bytes</param> byte verificati dal peer
+	 * <param>peer</param>.
+	 * 
+	 * @param peer
+	 *            il peer da cui sono stati scaricati i byte
+	 * @param bytes
+	 *            il numero di byte scaricati
+	 */
+	void received(Peer peer, int bytes) {
+		AtomicLong received = receivedMap.get(peer);
+		if (received == null) {
+			AtomicLong other = receivedMap.putIfAbsent(peer, received = new AtomicLong());
+			if (other != null)
+				received = other;
+		}
+		received.addAndGet(bytes);
+	}
+
+	/**
+	 * Registra la connessione <param>uploader</param> appena aperta, che e' strozzata; se c'e'
+	 * un posto libero la connessione viene servita subito.
+	 * 
+	 * @param uploader
+	 *            la connessione
+	 */
+	synchronized void opened(Uploader uploader) {
+		uploaders.add(uploader);
+		fillSlots();
+	}
+
+	/**
+	 * Registra che la connessione <param>uploader</param> e' stata chiusa e assegna il suo posto
+	 * a un'altra connessione.
+	 * 
+	 * @param uploader
+	 *            la connessione
+	 */
+	synchronized void closed(Uploader uploader) {
+		uploaders.remove(uploader);
+		unchoked.remove(uploader);
+		if (optimistic == uploader)
+			optimistic = null;
+		fillSlots();
+	}
+
+	/**
+	 * Termina il thread.
+	 */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			while (!closed) {
+				try {
+					wait(RECHOKE_PERIOD_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!closed)
+					rechoke();
+			}
+		}
+	}
+
+	/** assegna i posti liberi alle connessioni strozzate, nell'ordine di apertura */
+	private void fillSlots() {
+		int regular = unchoked.size() - (optimistic == null ? 0 : 1);
+		for (Iterator<Uploader> i = uploaders.iterator(); i.hasNext() && regular < UPLOAD_SLOTS;) {
+			Uploader uploader = i.next();
+			if (unchoked.add(uploader)) {
+				uploader.setChoked(false);
+				regular++;
+			}
+		}
+	}
+
+	/** sceglie le connessioni da servire in base ai byte scaricati nell'ultimo periodo */
+	private void rechoke() {
+		HashMap<Peer, Long> received = new HashMap<Peer, Long>();
+		Iterator<Map.Entry<Peer, AtomicLong>> entries = receivedMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Peer, AtomicLong> entry = entries.next();
+			long bytes = entry.getValue().getAndSet(0);
+			if (bytes == 0) {
+				entries.remove();
+			} else {
+				Peer peer = identity(entry.getKey());
+				received.put(peer, bytes + bytes(received, peer));
+			}
+		}
+		final HashMap<Uploader, Long> receivedFrom = new HashMap<Uploader, Long>();
+		final HashMap<Uploader, Long> sent = new HashMap<Uploader, Long>();
+		for (Uploader uploader : uploaders) {
+			receivedFrom.put(uploader, bytes(received, identity(uploader.getPeer())));
+			sent.put(uploader, uploader.takeSentBytes());
+		}
+
+		ArrayList<Uploader> ranking = new ArrayList<Uploader>(uploaders);
+		Collections.sort(ranking, new Comparator<Uploader>() {
+			public int compare(Uploader a, Uploader b) {
+				long diff = receivedFrom.get(b) - receivedFrom.get(a);
+				if (diff == 0)
+					diff = sent.get(b) - sent.get(a);
+				return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+			}
+		});
+		HashSet<Uploader> chosen = new HashSet<Uploader>();
+		for (int i = 0; i < ranking.size() && i < UPLOAD_SLOTS; i++)
+			chosen.add(ranking.get(i));
+		if (rounds++ % OPTIMISTIC_PERIODS == 0 || optimistic == null) {
+			optimistic = null;
+			if (ranking.size() > UPLOAD_SLOTS)
+				optimistic = ranking.get(UPLOAD_SLOTS
+						+ random.nextInt(ranking.size() - UPLOAD_SLOTS));
+		}
+		if (optimistic != null)
+			chosen.add(optimistic);
+
+		for (Uploader uploader : uploaders) {
+			boolean choke = !chosen.contains(uploader);
+			if (choke == unchoked.contains(uploader)) {
+				uploader.setChoked(choke);
+				if (choke)
+					unchoked.remove(uploader);
+				else
+					unchoked.add(uploader);
+			}
+		}
+	}
+
+	/** i byte scaricati da <param>peer</param> nell'ultimo periodo */
+	private static long bytes(HashMap<Peer, Long> received, Peer peer) {
+		Long bytes = received.get(peer);
+		return bytes == null ? 0 : bytes;
+	}
+
+	/**
+	 * Restituisce l'identita' con cui vengono contati i byte scaricati da <param>peer</param>:
+	 * l'indirizzo e la porta su cui e' in ascolto il suo server. Un indirizzo di questo host (di
+	 * loopback, generico o di una delle sue interfacce) viene sostituito con l'indirizzo di
+	 * loopback, cosi' che un peer sullo stesso host abbia la stessa identita' sia quando viene
+	 * comunicato dal tracker sia quando si connette al server.
+	 * 
+	 * @param peer
+	 *            il peer
+	 * @return l'identita' del peer.
+	 */
+	private static Peer identity(Peer peer) {
+		InetAddress address = peer.getAddress();
+		boolean local = address.isLoopbackAddress() || address.isAnyLocalAddress();
+		if (!local) {
+			try {
+				local = NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+			}
+		}
+		if (local)
+			return new Peer(InetAddress.getLoopbackAddress(), peer.getPort());
+		return peer;
+	}
+}
@@ -3,6 +3,11 @@ package bitCreekPeer;
 import ioInterface.OutInterface;
 
 import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.StringTokenizer;
 
 import bitCreekCommon.TorrentFile;
@@ -15,8 +20,9 @@ import bitCreekCommon.TorrentFile;
  * <p>
  * &#60;COMMANDFILE&#62; ::= &#60;COMMAND&#62;\n &#60;COMMANDFILE&#62; | &#60;COMMAND&#62;\n
  * <p>
- * &#60;COMMAND&#62; ::= publish fileName | lookup fileName | download fileName | leaveSwarm
- * fileName | wait millis | leaveNetwork
+ * &#60;COMMAND&#62; ::= publish fileName | lookup fileName | download fileName | stream fileName
+ * destination | range fileName offset length destination | leaveSwarm fileName | wait millis |
+ * leaveNetwork
  * <p>
  * col seguente significato:
  * <p>
@@ -38,6 +44,16 @@ import bitCreekCommon.TorrentFile;
  * <td> cerca di scaricare il file di nome fileName </td>
  * </tr>
  * <tr>
+ * <td>stream fileName destination</td>
+ * <td> scarica in ordine il file di nome fileName e ne copia il contenuto nel file destination
+ * man mano che arriva </td>
+ * </tr>
+ * <tr>
+ * <td>range fileName offset length destination</td>
+ * <td> scarica solo i pezzi del file di nome fileName che coprono i length byte a partire dal
+ * byte offset e copia tali byte nel file destination </td>
+ * </tr>
+ * <tr>
  * <td>leaveSwarm fileName</td>
  * <td> abbandona lo swarm del file di nome fileName </td>
  * </tr>
@@ -121,6 +137,29 @@ class CommandInterpreter extends Thread {
 						log.println(" > file " + argument + " found");
 						peer.retrieve(torrent);
 					}
+				} else if (command.startsWith("stream")) {
+					String fileName = token.nextToken();
+					String destination = token.nextToken();
+					TorrentFile torrent;
+					if ((torrent = peer.lookup(fileName)) == null) {
+						log.println(" > file " + fileName + " NOT found");
+					} else {
+						log.println(" > file " + fileName + " found");
+						copy(peer.stream(torrent), 0, torrent.fileLength, destination);
+					}
+				} else if (command.startsWith("range")) {
+					String fileName = token.nextToken();
+					long offset = Long.parseLong(token.nextToken());
+					long length = Long.parseLong(token.nextToken());
+					String destination = token.nextToken();
+					TorrentFile torrent;
+					if ((torrent = peer.lookup(fileName)) == null) {
+						log.println(" > file " + fileName + " NOT found");
+					} else {
+						log.println(" > file " + fileName + " found");
+						copy(peer.retrieveRanges(torrent, new long[] { offset },
+								new long[] { length }), offset, length, destination);
+					}
 				} else if (command.startsWith("leaveSwarm")) {
 					TorrentFile torrent;
 					if ((torrent = peer.lookup(argument)) == null) {
@@ -158,4 +197,39 @@ class CommandInterpreter extends Thread {
 			System.exit(-1);
 		}
 	}
+
+	/**
+	 * copia nel file <param>destination</param> i <param>length</param> byte del canale
+	 * <param>source</param> a partire dalla posizione <param>offset</param>, man mano che
+	 * diventano leggibili, e chiude il canale
+	 */
+	private void copy(SeekableByteChannel source, long offset, long length, String destination)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		long firstByte = -1;
+		FileChannel out = new FileOutputStream(destination).getChannel();
+		try {
+			source.position(offset);
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			long copied = 0;
+			while (copied < length) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+				if (source.read(buffer) < 0)
+					break;
+				if (firstByte < 0)
+					firstByte = System.currentTimeMillis() - start;
+				buffer.flip();
+				while (buffer.hasRemaining())
+					out.write(buffer);
+				copied += buffer.limit();
+			}
+			log.println(" > " + copied + " bytes copied to " + destination + ", first byte after "
+					+ firstByte + " ms, all bytes after " + (System.currentTimeMillis() - start)
+					+ " ms");
+		} finally {
+			out.close();
+			source.close();
+		}
+	}
 }
@@ -1,41 +1,153 @@
 package bitCreekPeer;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import bitCreekCommon.PieceBitfield;
 import bitCreekCommon.TorrentFile;
 
 /**
  * 
  * Gestisce i file posseduti dal peer.
  * 
- * Ogni peer ha due cartelle:
+ * Ogni peer ha tre cartelle:
  * <ul>
  * <li>{@link #partFileDirName}: contiene le parti di file scaricate</li>
- * <li>{@link #completeFileDirName}: contiene i file completi.</li>
+ * <li>{@link #completeFileDirName}: contiene i file completi</li>
+ * <li>{@link #torrentFileDirName}: contiene i descrittori salvati dei file publicati.</li>
  * </ul>
  * 
- * Le parti di file vengono memorizzate secondo il formato
- * <code>partFileDirName + File.separatorChar + fileName + ".part." + offset</code> in altre
- * parole il nome di una parte relativo alla directory delle parti e' dato concatenando il nome del
- * file con la stringa ".part." seguita dall'offset della parte.
- * 
+ * Le parti di un file vengono memorizzate tutte in un unico file di appoggio di nome
+ * <code>partFileDirName + File.separatorChar + fileName + ".part"</code> che ha fin da subito la
+ * lunghezza del file completo. Ogni pezzo viene scritto alla sua posizione all'interno del file di
+ * appoggio, quindi quando il file e' completo basta spostarlo nella directory dei file completi.
+ * Se il torrent descrive una directory il file di appoggio e' una directory con lo stesso nome che
+ * contiene i file descritti con la loro lunghezza finale (vedi {@link MultiFileStorage}) e anche i
+ * file completi sono directory: la lunghezza e la data di modifica di una directory sono la somma
+ * delle lunghezze e la piu' recente delle date di modifica dei file che contiene.
+ * <p>
+ * I pezzi posseduti di ogni file sono memorizzati in un {@link PieceBitfield} e sono identificati
+ * dal loro indice all'interno del file. Per ogni file di appoggio c'e' un {@link ResumeIndex} di
+ * nome <code>partFileDirName + File.separatorChar + fileName + ".resume"</code> che registra su
+ * disco i pezzi scritti: all'avvio i pezzi posseduti vengono letti dagli indici aggiornati. Se
+ * l'indice di un file non e' aggiornato i pezzi che registra vengono ricontrollati con gli hash del
+ * descrittore del file prima di iniziare di nuovo a scaricarlo (vedi {@link #resume(TorrentFile)}).
+ * <p>
+ * Lo stato di ogni file e' memorizzato in un oggetto separato con i propri lock, quindi le
+ * operazioni su file diversi non si bloccano a vicenda: i pezzi posseduti vengono letti senza
+ * acquisire nessun lock, il lock in lettura del file protegge l'uso del file di appoggio aperto
+ * (che viene chiuso solo con il lock in scrittura) e il monitor dello stato protegge l'indice di
+ * ripresa.
+ * <p>
+ * I pezzi posseduti dei file di cui e' noto il descrittore vengono ricontrollati in sottofondo
+ * da un {@link PieceScrubber}: un pezzo rovinato smette di essere posseduto e, se il file era
+ * completo, il file torna nella directory delle parti di file per essere completato di nuovo.
+ * <p>
+ * Chi deve sapere subito quando il peer ottiene un nuovo pezzo o ne perde uno rovinato, come il
+ * server che annuncia i nuovi pezzi ai peer connessi, si registra con
+ * {@link #addPieceListener(PieceListener)}.
+ * <p>
+ * Un file puo' essere letto mentre viene scaricato con {@link #openChannel(TorrentFile)}: le
+ * letture si bloccano solo sui pezzi non ancora posseduti, attendendo sul monitor dello stato del
+ * file che viene notificato quando un pezzo diventa posseduto.
  * 
  * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
  * 
  */
 class FileManager {
 
-	/** memorizza le associazioni tra nomi e parti del file possedute */
-	private Map<String, ArrayList<Long>> ownedPartMap;
+	/** riceve la notifica dei pezzi che diventano posseduti o smettono di esserlo */
+	interface PieceListener {
+
+		/**
+		 * Comunica che il pezzo di indice <param>index</param> del file <param>fileName</param>
+		 * e' stato scritto ed e' diventato posseduto. Viene chiamato senza lock acquisiti dal
+		 * thread che ha scritto il pezzo, quindi non deve bloccarsi.
+		 * 
+		 * @param fileName
+		 *            il nome del file
+		 * @param index
+		 *            l'indice del pezzo
+		 */
+		void pieceAdded(String fileName, int index);
+
+		/**
+		 * Comunica che il pezzo di indice <param>index</param> del file <param>fileName</param>
+		 * e' rovinato e non e' piu' posseduto. Viene chiamato senza lock acquisiti dal thread che
+		 * ha ricontrollato il pezzo.
+		 * 
+		 * @param fileName
+		 *            il nome del file
+		 * @param index
+		 *            l'indice del pezzo
+		 */
+		void pieceRemoved(String fileName, int index);
+	}
+
+	/** lo stato di un file posseduto o in corso di scaricamento */
+	private static class TorrentState {
+
+		/**
+		 * i pezzi posseduti, <code>null</code> se il peer non possiede nessun pezzo del file. Il
+		 * riferimento e i singoli pezzi possono essere letti senza acquisire nessun lock.
+		 */
+		volatile PieceBitfield owned;
+
+		/** il descrittore del file oppure <code>null</code> se non e' ancora noto */
+		volatile TorrentFile torrent;
+
+		/**
+		 * il file di appoggio aperto oppure <code>null</code>; viene aperto e chiuso solo con il
+		 * lock in scrittura di {@link #lock}
+		 */
+		volatile TorrentStorage storage;
+
+		/** protegge l'uso del file di appoggio aperto */
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/** l'indice di ripresa aperto oppure <code>null</code>; protetto dal monitor dello stato */
+		ResumeIndex resumeIndex;
+
+		/**
+		 * <code>true</code> se l'indice di ripresa non era aggiornato all'avvio e i pezzi del file
+		 * di appoggio devono essere ricontrollati; protetto dal monitor dello stato
+		 */
+		boolean needsRecheck;
+
+		/**
+		 * i pezzi registrati nell'indice non aggiornato, <code>null</code> se l'indice manca;
+		 * protetto dal monitor dello stato
+		 */
+		PieceBitfield claimed;
+
+		/**
+		 * la posizione dell'ultima lettura o dell'ultimo spostamento di un canale aperto sul file
+		 * (vedi {@link PieceChannel}), -1 se non ci sono canali aperti
+		 */
+		volatile long readPosition = -1;
+	}
+
+	/** memorizza le associazioni tra nomi e stato dei file */
+	private final ConcurrentHashMap<String, TorrentState> stateMap;
 
 	/**
 	 * il nome relativo alla current working directory del processo della cartella che contiene le
@@ -49,12 +161,44 @@ class FileManager {
 	 */
 	private String completeFileDirName = "complete.dir";
 
+	/**
+	 * il nome relativo alla current working directory del processo della cartella che contiene i
+	 * descrittori salvati
+	 */
+	private String torrentFileDirName = "torrent.dir";
+
+	/** suffisso dei descrittori salvati */
+	private static final String TORRENT_SUFFIX = ".torrent";
+
+	/** suffisso dei file di appoggio */
+	private static final String PART_SUFFIX = ".part";
+
+	/** suffisso degli indici di ripresa */
+	private static final String RESUME_SUFFIX = ".resume";
+
+	/** dimensione in byte della cache dei pezzi inviati agli altri peer */
+	private static final long PIECE_CACHE_CAPACITY = 1 << 26;
+
+	/** scrive su disco i pezzi scaricati */
+	private final PieceWriter pieceWriter = new PieceWriter(this);
+
+	/** ricontrolla in sottofondo i pezzi posseduti */
+	private final PieceScrubber scrubber = new PieceScrubber(this);
+
+	/** gli oggetti a cui vengono notificati i nuovi pezzi posseduti */
+	private final CopyOnWriteArrayList<PieceListener> pieceListeners =
+			new CopyOnWriteArrayList<PieceListener>();
+
+	/** la cache dei pezzi inviati agli altri peer */
+	private final PieceCache pieceCache = new PieceCache(PIECE_CACHE_CAPACITY,
+			TorrentFile.MIN_PIECE_LENGTH);
+
 	/**
 	 * Crea un nuovo gestore dei file
 	 */
 	FileManager() {
+		stateMap = new ConcurrentHashMap<String, TorrentState>();
 		try {
-			ownedPartMap = new HashMap<String, ArrayList<Long>>();
 			File partFileDir = new File(partFileDirName);
 			File completeFileDir = new File(completeFileDirName);
 
@@ -64,6 +208,10 @@ class FileManager {
 			if (!completeFileDir.exists()) {
 				completeFileDir.mkdir();
 			}
+			File torrentFileDir = new File(torrentFileDirName);
+			if (!torrentFileDir.exists()) {
+				torrentFileDir.mkdir();
+			}
 			if (!partFileDir.isDirectory()) {
 				throw new Error(
 						"there already exist a file with the same name of the part file directory but this file is not a directory");
@@ -73,24 +221,25 @@ class FileManager {
 						"there already exist a file with the same name of the complete file directory but this file is not a directory");
 			}
 			for (String dirEntry : partFileDir.list()) {
-				int index;
-				if ((index = dirEntry.indexOf(".part.")) >= 0) {
-					long offset = Long.parseLong(dirEntry.substring(index));
-					String fileName = dirEntry.substring(0, index);
-					this.addPiece(fileName, offset);
-				} else {
+				if (dirEntry.endsWith(PART_SUFFIX)) {
+					String fileName = dirEntry.substring(0, dirEntry.length()
+							- PART_SUFFIX.length());
+					this.loadResumeIndex(fileName);
+				} else if (!dirEntry.endsWith(RESUME_SUFFIX)) {
 					throw new Error("in part file directory:\"" + partFileDir.getAbsolutePath()
 							+ "\" + file name not valid:\"" + dirEntry + "\"");
 				}
 			}
 			for (String dirEntry : completeFileDir.list()) {
-				if (dirEntry.indexOf(".part.") >= 0) {
+				if (dirEntry.endsWith(PART_SUFFIX)) {
 					throw new Error("in complete file directory:\""
 							+ completeFileDir.getAbsolutePath() + "\" + file name not valid:\""
 							+ dirEntry + "\"");
 				}
 				this.addWholeFile(dirEntry);
 			}
+			if (scrubber.isEnabled())
+				scrubber.start();
 		} catch (Throwable e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -99,22 +248,199 @@ class FileManager {
 	}
 
 	/**
-	 * Aggiunge all'insieme dei pezzi di file posseduti il pezzo <param>offset</param> del file
-	 * <param>fileName</param>.
+	 * Restituisce lo stato del file <param>fileName</param> creandolo se non esiste.
 	 * 
 	 * @param fileName
 	 *            il nome del file
-	 * @param offset
-	 *            l'offset che individua il pezzo del file da aggiungere
-	 */
-	synchronized void addPiece(String fileName, long offset) {
-		ArrayList<Long> partList;
-		if ((partList = ownedPartMap.get(fileName)) == null) {
-			partList = new ArrayList<Long>();
-			partList.add(new Long(offset));
-			ownedPartMap.put(fileName, partList);
-		} else {
-			partList.add(new Long(offset));
+	 * @return lo stato del file <param>fileName</param>
+	 */
+	private TorrentState stateOf(String fileName) {
+		TorrentState state;
+		if ((state = stateMap.get(fileName)) == null) {
+			TorrentState created = new TorrentState();
+			if ((state = stateMap.putIfAbsent(fileName, created)) == null)
+				state = created;
+		}
+		return state;
+	}
+
+	/**
+	 * Legge l'indice di ripresa del file di appoggio del file <param>fileName</param>. Se l'indice
+	 * e' aggiornato i pezzi che registra diventano posseduti; altrimenti il file viene aggiunto a
+	 * quelli da ricontrollare.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @throws IOException
+	 */
+	private void loadResumeIndex(String fileName) throws IOException {
+		File resumeFile = new File(this.getAbsolutePathOfResumeIndex(fileName));
+		ResumeIndex index = resumeFile.exists() ? ResumeIndex.load(resumeFile) : null;
+		TorrentState state = stateOf(fileName);
+		synchronized (state) {
+			if (index != null
+					&& index.isUpToDate(new File(this.getAbsolutePathOfPartFile(fileName)))) {
+				state.owned = index.getOwned();
+				state.resumeIndex = index;
+			} else {
+				if (index != null)
+					index.abandon();
+				state.needsRecheck = true;
+				state.claimed = index == null ? null : index.getOwned();
+			}
+		}
+	}
+
+	/**
+	 * Prepara il peer a riprendere lo scaricamento del file descritto da <param>torrent</param>.
+	 * Se l'indice di ripresa del file di appoggio non era aggiornato all'avvio allora i pezzi del
+	 * file di appoggio vengono ricontrollati in parallelo con gli hash del descrittore: se l'indice
+	 * esiste vengono ricontrollati solo i pezzi che registra, altrimenti tutti. I pezzi corretti
+	 * diventano posseduti e viene scritto un nuovo indice.
+	 * <p>
+	 * Se il thread viene interrotto il controllo viene annullato: i thread che controllano i pezzi
+	 * non vengono interrotti, perche' l'interruzione di un thread durante un'operazione su un
+	 * <code>FileChannel</code> chiude il canale, ma si fermano al pezzo successivo. Il lock sul
+	 * file di appoggio viene rilasciato solo dopo che tutti hanno terminato e lo stato di
+	 * interruzione del thread viene ripristinato.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file da scaricare
+	 */
+	void resume(final TorrentFile torrent) {
+		TorrentState state;
+		if ((state = stateMap.get(torrent.fileName)) == null)
+			return;
+		state.torrent = torrent;
+		PieceBitfield claimed;
+		synchronized (state) {
+			if (!state.needsRecheck)
+				return;
+			state.needsRecheck = false;
+			claimed = state.claimed;
+			state.claimed = null;
+			File partFile = new File(this.getAbsolutePathOfPartFile(torrent.fileName));
+			if (contentLength(partFile) != torrent.fileLength
+					|| (claimed != null && claimed.size() != torrent.getPiecesNumber())) {
+				new File(this.getAbsolutePathOfResumeIndex(torrent.fileName)).delete();
+				return;
+			}
+		}
+		if (claimed == null) {
+			claimed = new PieceBitfield(torrent.getPiecesNumber());
+			claimed.setAll();
+		}
+		final PieceBitfield toCheck = claimed;
+		final PieceBitfield verified = new PieceBitfield(torrent.getPiecesNumber());
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		final TorrentStorage storage;
+		try {
+			storage = lockStorage(state, torrent.fileName, torrent);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int first = t;
+				results.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						byte[] piece = new byte[torrent.pieceLength];
+						for (int index = first; index < toCheck.size(); index += threads) {
+							if (cancelled.get())
+								return null;
+							if (!toCheck.has(index))
+								continue;
+							long offset = (long) index * torrent.pieceLength;
+							storage.read(offset, piece, torrent.getLengthOfPiece(offset));
+							if (torrent.hashsMatch(offset, piece))
+								verified.set(index);
+						}
+						return null;
+					}
+				}));
+			}
+			pool.shutdown();
+			for (Future<?> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			cancelled.set(true);
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			cancelled.set(true);
+			e.printStackTrace();
+			return;
+		} finally {
+			pool.shutdown();
+			boolean interrupted = Thread.interrupted();
+			while (true) {
+				try {
+					if (pool.awaitTermination(1, TimeUnit.MINUTES))
+						break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			state.lock.readLock().unlock();
+		}
+		synchronized (state) {
+			try {
+				if (state.owned == null)
+					state.owned = verified;
+				else
+					state.owned.or(verified);
+				ResumeIndex index = ResumeIndex.create(new File(this
+						.getAbsolutePathOfResumeIndex(torrent.fileName)), state.owned);
+				if (state.resumeIndex != null)
+					state.resumeIndex.abandon();
+				state.resumeIndex = index;
+				state.notifyAll();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+	}
+
+	/**
+	 * Attende che siano scritti tutti i pezzi accodati, chiude tutti i file di appoggio aperti
+	 * scrivendoli su disco e chiude correttamente i relativi indici di ripresa cosi' che al
+	 * prossimo avvio i pezzi posseduti possano essere letti dagli indici. Ogni file viene chiuso
+	 * dopo che sono terminati gli invii in corso dei suoi pezzi.
+	 */
+	void close() {
+		scrubber.close();
+		pieceWriter.close();
+		for (Entry<String, TorrentState> entry : stateMap.entrySet()) {
+			TorrentState state = entry.getValue();
+			state.lock.writeLock().lock();
+			try {
+				if (state.storage != null) {
+					state.storage.force();
+					state.storage.close();
+					state.storage = null;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				state.lock.writeLock().unlock();
+			}
+			synchronized (state) {
+				try {
+					if (state.resumeIndex != null)
+						state.resumeIndex.close(new File(this.getAbsolutePathOfPartFile(entry
+								.getKey())));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				state.resumeIndex = null;
+			}
 		}
 	}
 
@@ -124,72 +450,329 @@ class FileManager {
 	 * @param fileName
 	 *            il file da aggiungere.
 	 */
-	synchronized private void addWholeFile(String fileName) {
-		if (ownedPartMap.get(fileName) == null) {
-			ArrayList<Long> allPieces = new ArrayList<Long>();
-			File file = new File(this.getAbsolutePathOfCompleteFile(fileName));
-			for (long offset = 0; offset < file.length(); offset += TorrentFile.PIECE_LENGTH)
-				allPieces.add(new Long(offset));
-			ownedPartMap.put(fileName, allPieces);
-		} else {
-			throw new IllegalArgumentException(" file already present " + fileName);
+	private void addWholeFile(String fileName) {
+		TorrentState state = stateOf(fileName);
+		synchronized (state) {
+			if (state.owned == null) {
+				File file = new File(this.getAbsolutePathOfCompleteFile(fileName));
+				long length = contentLength(file);
+				int pieceLength = TorrentFile.pieceLengthFor(length);
+				int piecesNumber = (int) ((length + pieceLength - 1) / pieceLength);
+				PieceBitfield allPieces = new PieceBitfield(piecesNumber);
+				allPieces.setAll();
+				state.owned = allPieces;
+			} else {
+				throw new IllegalArgumentException(" file already present " + fileName);
+			}
 		}
 	}
 
 	/**
 	 * Restituisce <code>null</code> se il peer non possiede nessuna parte del file
-	 * <param>fileName</param> altrimenti restituisce tutte le parti possedute. Se il peer possiede
-	 * una copia completa del file restituisce semplicemente tutte le parti del file. La lista delle
-	 * parti possedute e' una lista di offset.
+	 * <param>fileName</param> altrimenti restituisce una copia dell'insieme delle parti
+	 * possedute. Non acquisisce nessun lock.
 	 * 
 	 * @param fileName
 	 *            il file di cui si richiedono le parti possedute.
 	 * 
 	 * @return <code>null</code> se il peer non possiede nessuna parte del file <param>fileName</param>
-	 *         altrimenti restituisce tutte le parti possedute.
+	 *         altrimenti restituisce una copia dell'insieme delle parti possedute.
+	 */
+	PieceBitfield getOwnedPieces(String fileName) {
+		PieceBitfield owned;
+		if ((owned = ownedOf(fileName)) == null)
+			return null;
+		return new PieceBitfield(owned);
+	}
+
+	/**
+	 * Restituisce i pezzi posseduti del file <param>fileName</param> senza acquisire nessun lock.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return i pezzi posseduti oppure <code>null</code> se il peer non possiede nessun pezzo
+	 */
+	private PieceBitfield ownedOf(String fileName) {
+		TorrentState state;
+		if ((state = stateMap.get(fileName)) == null)
+			return null;
+		return state.owned;
+	}
+
+	/**
+	 * Restituisce lo stato del file <param>fileName</param> se il peer possiede il pezzo di
+	 * indice <param>index</param>; altrimenti solleva eccezione.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             se il peer non possiede il pezzo
+	 */
+	private TorrentState ownedStateOf(String fileName, int index)
+			throws IllegalArgumentException {
+		TorrentState state = stateMap.get(fileName);
+		PieceBitfield owned = state == null ? null : state.owned;
+		if (owned == null || index < 0 || index >= owned.size() || !owned.has(index))
+			throw new IllegalArgumentException(" part " + index + " of file " + fileName
+					+ " not found ");
+		return state;
+	}
+
+	/**
+	 * Restituisce la lunghezza del pezzo di indice <param>index</param> del file di nome
+	 * <param>fileName</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo all'interno del file
+	 * @return la lunghezza del pezzo
+	 * @throws IOException
+	 *             se non e' possibile aprire il file
+	 * @throws IllegalArgumentException
+	 *             se il peer non possiede il pezzo di indice <param>index</param> del file di
+	 *             nome <param>fileName</param>
 	 */
-	synchronized ArrayList<Long> getPieceOffests(String fileName) {
-		return ownedPartMap.get(fileName);
+	int getLengthOfPiece(String fileName, int index) throws IOException,
+			IllegalArgumentException {
+		TorrentState state = ownedStateOf(fileName, index);
+		TorrentStorage storage = lockStorage(state, fileName, null);
+		try {
+			int pieceLength = pieceLengthOf(storage);
+			return (int) Math.min(pieceLength, storage.getLength() - (long) index * pieceLength);
+		} finally {
+			state.lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * Restituisce il pezzo di indice <param>offset</param> del file di nome <param>fileName</param>.
-	 * Se il peer non possiede tale pezzo di tale file allora solleva eccezzione.
+	 * Restituisce il pezzo di indice <param>index</param> del file di nome
+	 * <param>fileName</param> se e' nella cache dei pezzi o se viene inserito nella cache perche'
+	 * richiesto di recente; altrimenti restituisce <code>null</code> e il pezzo deve essere
+	 * inviato con {@link #transferPiece(String, int, long, WritableByteChannel)}. Deve essere
+	 * chiamato una sola volta per ogni invio del pezzo.
 	 * 
 	 * @param fileName
-	 *            il file di cui si vuole avere un pezzo
-	 * @param offset
+	 *            il nome del file
+	 * @param index
 	 *            l'indice del pezzo all'interno del file
-	 * @return il pezzo di indice <param>offset</param> del file di nome <param>fileName</param>
-	 *         se il peer lo possiede altrimenti solleva eccezzione.
+	 * @return una vista in sola lettura del pezzo oppure <code>null</code>
+	 * @throws IOException
+	 *             se non e' possibile leggere il pezzo
+	 * @throws IllegalArgumentException
+	 *             se il peer non possiede il pezzo di indice <param>index</param> del file di
+	 *             nome <param>fileName</param>
+	 */
+	ByteBuffer getCachedPiece(String fileName, int index) throws IOException,
+			IllegalArgumentException {
+		TorrentState state = ownedStateOf(fileName, index);
+		TorrentStorage storage = lockStorage(state, fileName, null);
+		try {
+			return getCachedPiece(fileName, index, storage);
+		} finally {
+			state.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Invia sul canale <param>target</param> i byte del pezzo di indice <param>index</param> del
+	 * file di nome <param>fileName</param> a partire dal byte <param>position</param> del pezzo.
+	 * I byte passano direttamente dal file al canale senza essere copiati in memoria e vengono
+	 * inviati con un solo tentativo, quindi se <param>target</param> e' un canale non bloccante
+	 * possono essere inviati solo alcuni dei byte rimanenti, anche nessuno. Durante l'invio viene
+	 * tenuto solo il lock in lettura del file, quindi gli invii e gli scaricamenti di pezzi dello
+	 * stesso file o di altri file possono procedere in parallelo.
 	 * 
+	 * @param fileName
+	 *            il file di cui si vuole inviare un pezzo
+	 * @param index
+	 *            l'indice del pezzo all'interno del file
+	 * @param position
+	 *            la posizione all'interno del pezzo del primo byte da inviare
+	 * @param target
+	 *            il canale su cui inviare il pezzo
+	 * @return il numero di byte inviati
+	 * @throws IOException
+	 *             se si verifica un errore durante l'invio
 	 * @throws IllegalArgumentException
-	 *             se il peer non possiede il pezzo di indice <param>offset</param> del file di
+	 *             se il peer non possiede il pezzo di indice <param>index</param> del file di
 	 *             nome <param>fileName</param>
 	 */
-	synchronized byte[] getPiece(String fileName, long offset) throws IllegalArgumentException {
+	long transferPiece(String fileName, int index, long position, WritableByteChannel target)
+			throws IOException, IllegalArgumentException {
+		TorrentState state = ownedStateOf(fileName, index);
+		TorrentStorage storage = lockStorage(state, fileName, null);
 		try {
-			File f = new File(this.getAbsolutePathOfCompleteFile(fileName));
-			byte[] buffer = new byte[TorrentFile.PIECE_LENGTH];
-			if (f.exists() && f.length() > offset) {
-				FileInputStream in = new FileInputStream(f);
-				in.skip(offset);
-				in.read(buffer);
-				return buffer;
-			}
-			f = new File(this.getAbsolutePathOfPartFile(fileName, offset));
-			if (f.exists()) {
-				FileInputStream in = new FileInputStream(f);
-				in.read(buffer);
-				return buffer;
+			int pieceLength = pieceLengthOf(storage);
+			long offset = (long) index * pieceLength;
+			int length = (int) Math.min(pieceLength, storage.getLength() - offset);
+			return storage.transferTo(offset + position, length - position, target);
+		} finally {
+			state.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Restituisce il pezzo di indice <param>index</param> del file <param>fileName</param> dalla
+	 * cache dei pezzi. Se il pezzo non e' nella cache ma e' gia' stato richiesto di recente allora
+	 * viene letto da <param>storage</param> e inserito nella cache; altrimenti restituisce
+	 * <code>null</code>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param storage
+	 *            il file di appoggio da cui leggere il pezzo
+	 * @return il pezzo letto dalla cache oppure <code>null</code>
+	 * @throws IOException
+	 */
+	private ByteBuffer getCachedPiece(String fileName, int index, TorrentStorage storage)
+			throws IOException {
+		ByteBuffer cached = pieceCache.get(fileName, index);
+		if (cached == null && pieceCache.shouldAdmit(fileName, index)) {
+			int pieceLength = pieceLengthOf(storage);
+			long offset = (long) index * pieceLength;
+			ByteBuffer piece = ByteBuffer.allocateDirect((int) Math.min(pieceLength,
+					storage.getLength() - offset));
+			storage.read(offset, piece);
+			piece.flip();
+			cached = pieceCache.put(fileName, index, piece);
+		}
+		return cached;
+	}
+
+	/**
+	 * Restituisce la lunghezza dei pezzi del file di appoggio <param>storage</param>, che dipende
+	 * solo dalla lunghezza del file (vedi {@link TorrentFile#pieceLengthFor(long)}).
+	 * 
+	 * @param storage
+	 *            il file di appoggio
+	 * @return la lunghezza dei pezzi del file di appoggio <param>storage</param>
+	 */
+	private static int pieceLengthOf(TorrentStorage storage) {
+		return TorrentFile.pieceLengthFor(storage.getLength());
+	}
+
+	/**
+	 * Restituisce le statistiche della cache dei pezzi.
+	 * 
+	 * @return le statistiche della cache dei pezzi.
+	 */
+	String getCacheStatistics() {
+		return pieceCache.toString();
+	}
+
+	/**
+	 * Acquisisce il lock in lettura di <param>state</param> e restituisce il file di appoggio
+	 * aperto del file <param>fileName</param>, che rimane aperto finche' il chiamante non rilascia
+	 * il lock. Se il file di appoggio non e' ancora aperto viene aperto con il lock in scrittura:
+	 * se <param>torrent</param> non e' <code>null</code> viene aperto in scrittura con la
+	 * lunghezza e i file che descrive, altrimenti viene aperto cosi' com'e' su disco oppure, se il
+	 * peer possiede una copia completa del file, viene aperto il file completo in sola lettura.
+	 * 
+	 * @param state
+	 *            lo stato del file
+	 * @param fileName
+	 *            il nome del file
+	 * @param torrent
+	 *            il descrittore del file oppure <code>null</code> per usare il file che c'e' su
+	 *            disco
+	 * @return il file di appoggio aperto del file <param>fileName</param>
+	 * @throws IOException
+	 *             se non e' possibile aprire il file
+	 * @throws IllegalArgumentException
+	 *             se il file non esiste e <param>torrent</param> e' <code>null</code>
+	 */
+	private TorrentStorage lockStorage(TorrentState state, String fileName, TorrentFile torrent)
+			throws IOException {
+		state.lock.readLock().lock();
+		if (state.storage != null)
+			return state.storage;
+		state.lock.readLock().unlock();
+		state.lock.writeLock().lock();
+		try {
+			if (state.storage == null) {
+				File part = new File(this.getAbsolutePathOfPartFile(fileName));
+				File complete = new File(this.getAbsolutePathOfCompleteFile(fileName));
+				if (torrent != null && !complete.exists())
+					state.storage = openStorage(part, torrent, false);
+				else if (part.exists())
+					state.storage = openStorage(part, null, false);
+				else if (complete.exists())
+					state.storage = openStorage(complete, null, true);
+				else
+					throw new IllegalArgumentException(" file " + fileName + " not found ");
 			}
-		} catch (Throwable e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.exit(-1);
+			state.lock.readLock().lock();
+			return state.storage;
+		} finally {
+			state.lock.writeLock().unlock();
 		}
-		throw new IllegalArgumentException(" part " + offset + " of file " + fileName
-				+ " not found ");
+	}
+
+	/**
+	 * Apre il file o la directory <param>file</param> come contenuto del file descritto da
+	 * <param>torrent</param> oppure, se <param>torrent</param> e' <code>null</code>, con i file e
+	 * le lunghezze che ha su disco.
+	 * 
+	 * @param file
+	 *            il file o la directory da aprire
+	 * @param torrent
+	 *            il descrittore del file oppure <code>null</code>
+	 * @param readOnly
+	 *            <code>true</code> se il contenuto deve essere aperto in sola lettura
+	 * @return il contenuto aperto
+	 * @throws IOException
+	 *             se non e' possibile aprire il file
+	 */
+	private static TorrentStorage openStorage(File file, TorrentFile torrent, boolean readOnly)
+			throws IOException {
+		if (torrent != null) {
+			if (torrent.isDirectory())
+				return new MultiFileStorage(file, torrent, readOnly);
+			return new PieceStorage(file, torrent.fileLength, readOnly);
+		}
+		if (!file.isDirectory())
+			return new PieceStorage(file, file.length(), readOnly);
+		String[] paths = TorrentFile.listFiles(file);
+		long[] lengths = new long[paths.length];
+		for (int i = 0; i < paths.length; i++)
+			lengths[i] = new File(file, paths[i].replace('/', File.separatorChar)).length();
+		return new MultiFileStorage(file, paths, lengths, readOnly);
+	}
+
+	/**
+	 * Restituisce la lunghezza del contenuto del file <param>file</param>: se e' una directory la
+	 * somma delle lunghezze dei file che contiene.
+	 * 
+	 * @param file
+	 *            il file o la directory
+	 * @return la lunghezza del contenuto di <param>file</param>
+	 */
+	static long contentLength(File file) {
+		if (!file.isDirectory())
+			return file.length();
+		long length = 0;
+		for (String path : TorrentFile.listFiles(file))
+			length += new File(file, path.replace('/', File.separatorChar)).length();
+		return length;
+	}
+
+	/**
+	 * Restituisce la data di ultima modifica del contenuto del file <param>file</param>: se e'
+	 * una directory la piu' recente delle date di modifica dei file che contiene.
+	 * 
+	 * @param file
+	 *            il file o la directory
+	 * @return la data di ultima modifica del contenuto di <param>file</param>
+	 */
+	static long contentLastModified(File file) {
+		if (!file.isDirectory())
+			return file.lastModified();
+		long lastModified = 0;
+		for (String path : TorrentFile.listFiles(file))
+			lastModified = Math.max(lastModified, new File(file, path.replace('/',
+					File.separatorChar)).lastModified());
+		return lastModified;
 	}
 
 	/**
@@ -201,42 +784,398 @@ class FileManager {
 	 * @return <code>true</code> se il peer possiede una copia completa del file <param>fileName</param>;
 	 *         altrimenti <code>false</code>.
 	 */
-	synchronized boolean hasACompleteCopy(String fileName) {
-		ArrayList<Long> piecesList;
-		if ((piecesList = ownedPartMap.get(fileName)) == null)
+	boolean hasACompleteCopy(String fileName) {
+		PieceBitfield owned;
+		if ((owned = ownedOf(fileName)) == null)
 			return false;
-		long length = new File(this.getAbsolutePathOfCompleteFile(fileName)).length();
-		int piecesNumber = (int) (length / TorrentFile.PIECE_LENGTH);
-		if (length % TorrentFile.PIECE_LENGTH != 0)
-			piecesNumber++;
-		return piecesList.size() == piecesNumber;
+		return owned.isComplete();
 	}
 
 	/**
-	 * Aggiunge il pezzo <param>offset</param> del file di nome <param>fileName</param>
-	 * nell'insieme dei file posseduti dal peer e lo memorizza nella directory delle parti di file.
+	 * Restituisce <code>true</code> se il peer possiede tutti i pezzi <param>pieces</param> del
+	 * file descritto da <param>torrent</param>, oppure tutto il file se <param>pieces</param> e'
+	 * <code>null</code>; altrimenti <code>false</code>.
 	 * 
-	 * @param fileName
-	 *            il nome del file
-	 * @param offset
-	 *            l'identificatore del pezzo
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param pieces
+	 *            i pezzi oppure <code>null</code>
+	 * @return <code>true</code> se il peer possiede tutti i pezzi <param>pieces</param>;
+	 *         altrimenti <code>false</code>.
+	 */
+	boolean hasPieces(TorrentFile torrent, PieceBitfield pieces) {
+		if (pieces == null)
+			return hasACompleteCopy(torrent);
+		PieceBitfield owned;
+		if ((owned = ownedOf(torrent.fileName)) == null)
+			return pieces.nextSetBit(0) < 0;
+		if (owned.size() != pieces.size())
+			return false;
+		PieceBitfield missing = new PieceBitfield(pieces);
+		missing.andNot(owned);
+		return missing.nextSetBit(0) < 0;
+	}
+
+	/**
+	 * Accoda la scrittura del pezzo di indice <param>index</param> del file descritto da
+	 * <param>torrent</param> nel file di appoggio. Il pezzo viene aggiunto all'insieme dei pezzi
+	 * posseduti dal peer solo dopo essere stato scritto (vedi {@link PieceWriter}).
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param index
+	 *            l'indice del pezzo
 	 * @param piece
 	 *            il pezzo da memorizzare
 	 * @param length
 	 *            la lunghezza del pezzo
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto mentre attende un posto nella coda di scrittura
 	 */
-	synchronized void addAndStorePiece(String fileName, long offset, byte[] piece, int length) {
+	void addAndStorePiece(TorrentFile torrent, int index, byte[] piece, int length)
+			throws InterruptedException {
+		stateOf(torrent.fileName).torrent = torrent;
+		pieceWriter.enqueue(torrent, index, piece, length);
+	}
+
+	/**
+	 * Acquisisce il lock in lettura sul file di appoggio del file descritto da
+	 * <param>torrent</param>, aprendolo in scrittura se necessario, e lo restituisce. Il file
+	 * rimane aperto, e non puo' essere chiuso da {@link #close()} o perche' un pezzo e' rovinato,
+	 * finche' il chiamante non chiama {@link #unlockStorage(TorrentFile)}.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @return il file di appoggio aperto
+	 * @throws IOException
+	 *             se non e' possibile aprire il file
+	 */
+	TorrentStorage lockStorage(TorrentFile torrent) throws IOException {
+		return lockStorage(stateOf(torrent.fileName), torrent.fileName, torrent);
+	}
+
+	/**
+	 * Rilascia il lock acquisito con {@link #lockStorage(TorrentFile)}.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 */
+	void unlockStorage(TorrentFile torrent) {
+		stateOf(torrent.fileName).lock.readLock().unlock();
+	}
+
+	/**
+	 * Aggiunge all'insieme dei pezzi posseduti il pezzo di indice <param>index</param> del file
+	 * descritto da <param>torrent</param>, appena scritto nel file di appoggio, e lo registra
+	 * nell'indice di ripresa; poi lo notifica agli oggetti registrati con
+	 * {@link #addPieceListener(PieceListener)}.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	void pieceWritten(TorrentFile torrent, int index) {
+		TorrentState state = stateOf(torrent.fileName);
+		synchronized (state) {
+			try {
+				if (state.owned == null)
+					state.owned = new PieceBitfield(torrent.getPiecesNumber());
+				state.owned.set(index);
+				if (state.resumeIndex == null)
+					state.resumeIndex = ResumeIndex.create(new File(this
+							.getAbsolutePathOfResumeIndex(torrent.fileName)), state.owned);
+				state.resumeIndex.pieceAdded(index);
+				/* risveglia le letture in attesa del pezzo */
+				state.notifyAll();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		for (PieceListener listener : pieceListeners)
+			listener.pieceAdded(torrent.fileName, index);
+	}
+
+	/**
+	 * Registra <param>listener</param> perche' riceva la notifica di ogni pezzo scaricato che
+	 * diventa posseduto.
+	 * 
+	 * @param listener
+	 *            l'oggetto da notificare
+	 */
+	void addPieceListener(PieceListener listener) {
+		pieceListeners.add(listener);
+	}
+
+	/**
+	 * Toglie <param>listener</param>, registrato con {@link #addPieceListener(PieceListener)},
+	 * dagli oggetti da notificare.
+	 * 
+	 * @param listener
+	 *            l'oggetto da non notificare piu'
+	 */
+	void removePieceListener(PieceListener listener) {
+		pieceListeners.remove(listener);
+	}
+
+	/**
+	 * Apre un canale in sola lettura sul file descritto da <param>torrent</param>, posseduto
+	 * oppure in corso di scaricamento, posizionato all'inizio del file (vedi {@link PieceChannel}).
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @return il canale aperto
+	 */
+	SeekableByteChannel openChannel(TorrentFile torrent) {
+		stateOf(torrent.fileName).torrent = torrent;
+		return new PieceChannel(this, torrent);
+	}
+
+	/**
+	 * Legge i byte rimanenti di <param>dst</param> a partire dalla posizione
+	 * <param>position</param> del file <param>fileName</param>, che deve cadere nel pezzo di
+	 * indice <param>index</param> insieme a tutti i byte da leggere. Se il peer non possiede il
+	 * pezzo non legge nulla.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param position
+	 *            la posizione nel file del primo byte da leggere
+	 * @param dst
+	 *            il buffer in cui copiare i byte letti
+	 * @return <code>true</code> se i byte sono stati letti, <code>false</code> se il peer non
+	 *         possiede il pezzo
+	 * @throws IOException
+	 */
+	boolean readOwned(String fileName, int index, long position, ByteBuffer dst)
+			throws IOException {
+		TorrentState state;
 		try {
-			this.addPiece(fileName, offset);
-			FileOutputStream out = new FileOutputStream(this.getAbsolutePathOfPartFile(fileName,
-					offset));
-			out.write(piece, 0, length);
-			out.close();
-		} catch (Throwable e) {
-			// TODO Auto-generated catch block
+			state = ownedStateOf(fileName, index);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		TorrentStorage storage = lockStorage(state, fileName, null);
+		try {
+			storage.read(position, dst);
+			return true;
+		} finally {
+			state.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Attende che il pezzo di indice <param>index</param> del file <param>fileName</param>
+	 * diventi posseduto oppure che <param>channel</param> venga chiuso.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param channel
+	 *            il canale che attende il pezzo
+	 * @return <code>true</code> se il pezzo e' posseduto, <code>false</code> se il canale e'
+	 *         stato chiuso
+	 * @throws InterruptedException
+	 */
+	boolean awaitPiece(String fileName, int index, PieceChannel channel)
+			throws InterruptedException {
+		TorrentState state = stateOf(fileName);
+		synchronized (state) {
+			while (channel.isOpen()) {
+				PieceBitfield owned = state.owned;
+				if (owned != null && index < owned.size() && owned.has(index))
+					return true;
+				state.wait();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Registra che un canale aperto sul file <param>fileName</param> si trova alla posizione
+	 * <param>position</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param position
+	 *            la posizione del canale
+	 */
+	void streamMoved(String fileName, long position) {
+		stateOf(fileName).readPosition = position;
+	}
+
+	/**
+	 * Registra che un canale aperto sul file <param>fileName</param> e' stato chiuso e risveglia
+	 * la sua lettura se e' in attesa di un pezzo.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 */
+	void streamClosed(String fileName) {
+		TorrentState state = stateOf(fileName);
+		synchronized (state) {
+			state.readPosition = -1;
+			state.notifyAll();
+		}
+	}
+
+	/**
+	 * Restituisce la posizione dell'ultima lettura di un canale aperto sul file
+	 * <param>fileName</param>, -1 se non ci sono canali aperti.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return la posizione dell'ultima lettura oppure -1
+	 */
+	long getReadPosition(String fileName) {
+		TorrentState state;
+		if ((state = stateMap.get(fileName)) == null)
+			return -1;
+		return state.readPosition;
+	}
+
+	/**
+	 * Segnala che il pezzo posseduto di indice <param>index</param> del file
+	 * <param>fileName</param> e' stato richiesto da un altro peer e gli viene inviato, cosi' che
+	 * venga ricontrollato prima degli altri (vedi {@link PieceScrubber}).
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo richiesto
+	 */
+	void pieceRequested(String fileName, int index) {
+		scrubber.pieceRequested(fileName, index);
+	}
+
+	/**
+	 * Restituisce il descrittore del file <param>fileName</param> se e' noto; altrimenti
+	 * <code>null</code>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return il descrittore del file <param>fileName</param> oppure <code>null</code>
+	 */
+	TorrentFile getTorrent(String fileName) {
+		TorrentState state;
+		if ((state = stateMap.get(fileName)) == null)
+			return null;
+		return state.torrent;
+	}
+
+	/**
+	 * Restituisce i descrittori noti dei file di cui il peer possiede almeno un pezzo.
+	 * 
+	 * @return i descrittori noti dei file di cui il peer possiede almeno un pezzo.
+	 */
+	ArrayList<TorrentFile> getScrubbableTorrents() {
+		ArrayList<TorrentFile> torrents = new ArrayList<TorrentFile>();
+		for (TorrentState state : stateMap.values())
+			if (state.torrent != null && state.owned != null)
+				torrents.add(state.torrent);
+		return torrents;
+	}
+
+	/**
+	 * Ricontrolla il pezzo di indice <param>index</param> del file descritto da
+	 * <param>torrent</param> rileggendolo dal disco in <param>buffer</param>, senza passare
+	 * dalla cache dei pezzi, e confrontandolo con l'hash del descrittore. Se il pezzo non
+	 * corrisponde all'hash smette di essere posseduto, viene tolto dalla cache e dall'indice di
+	 * ripresa e, se il file era completo, il file torna nella directory delle parti di file. Se
+	 * il peer non possiede il pezzo non fa niente.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param buffer
+	 *            un buffer lungo almeno quanto i pezzi del file
+	 * @return il numero di byte letti
+	 */
+	int scrubPiece(TorrentFile torrent, int index, byte[] buffer) {
+		TorrentState state = stateMap.get(torrent.fileName);
+		PieceBitfield owned = state == null ? null : state.owned;
+		if (owned == null || owned.size() != torrent.getPiecesNumber() || !owned.has(index))
+			return 0;
+		long offset = (long) index * torrent.pieceLength;
+		int length = torrent.getLengthOfPiece(offset);
+		boolean matches;
+		try {
+			TorrentStorage storage = lockStorage(state, torrent.fileName, null);
+			try {
+				matches = storage.getLength() == torrent.fileLength
+						&& storage.read(offset, buffer, length) == length
+						&& torrent.hashsMatch(offset, buffer);
+			} finally {
+				state.lock.readLock().unlock();
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
-			System.exit(-1);
+			return 0;
+		} catch (IllegalArgumentException e) {
+			// il file non c'e' piu'
+			return 0;
 		}
+		if (!matches)
+			pieceCorrupted(state, torrent, index);
+		return length;
+	}
+
+	/**
+	 * toglie il pezzo rovinato di indice <param>index</param> dai pezzi posseduti, dalla cache e
+	 * dall'indice di ripresa; se il file era completo lo chiude e lo riporta nella directory delle
+	 * parti di file. Acquisisce il lock in scrittura e poi il monitor dello stato, come
+	 * {@link #close()}.
+	 */
+	private void pieceCorrupted(TorrentState state, TorrentFile torrent, int index) {
+		System.err.println("piece " + index + " of file " + torrent.fileName
+				+ " is corrupted and will be downloaded again");
+		state.lock.writeLock().lock();
+		try {
+			synchronized (state) {
+				state.owned.clear(index);
+				pieceCache.remove(torrent.fileName, index);
+				File completeFile = new File(this.getAbsolutePathOfCompleteFile(torrent.fileName));
+				File partFile = new File(this.getAbsolutePathOfPartFile(torrent.fileName));
+				if (completeFile.exists()) {
+					if (state.storage != null) {
+						state.storage.close();
+						state.storage = null;
+					}
+					if (!completeFile.renameTo(partFile))
+						throw new IOException(" unable to move " + completeFile
+								+ " to part file directory");
+				}
+				if (state.resumeIndex == null)
+					state.resumeIndex = ResumeIndex.create(new File(this
+							.getAbsolutePathOfResumeIndex(torrent.fileName)), state.owned);
+				else
+					state.resumeIndex.pieceRemoved(index);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			state.lock.writeLock().unlock();
+		}
+		for (PieceListener listener : pieceListeners)
+			listener.pieceRemoved(torrent.fileName, index);
+	}
+
+	/**
+	 * Attende che tutti i pezzi del file <param>fileName</param> accodati per la scrittura siano
+	 * stati scritti e aggiunti all'insieme dei pezzi posseduti.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto durante l'attesa
+	 */
+	void awaitWrites(String fileName) throws InterruptedException {
+		pieceWriter.awaitWrites(fileName);
 	}
 
 	/**
@@ -248,12 +1187,71 @@ class FileManager {
 	 * 
 	 * @return il nome del file <param>fileName</param> relativo alla directory delle parti di file
 	 */
-	synchronized public String getAbsolutePathOfCompleteFile(String fileName) {
+	public String getAbsolutePathOfCompleteFile(String fileName) {
 		return this.completeFileDirName + File.separatorChar + fileName;
 	}
 
 	/**
-	 * Crea il file completo a partire dalle parti di file scaricate.
+	 * Restituisce il descrittore salvato del file completo <param>fileName</param> se e' stato
+	 * salvato dopo l'ultima modifica del file e ne ha la stessa lunghezza; altrimenti restituisce
+	 * <code>null</code>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return il descrittore salvato del file <param>fileName</param> oppure <code>null</code>
+	 */
+	TorrentFile loadTorrent(String fileName) {
+		File torrentFile = new File(this.getAbsolutePathOfTorrentFile(fileName));
+		File completeFile = new File(this.getAbsolutePathOfCompleteFile(fileName));
+		if (!torrentFile.exists()
+				|| torrentFile.lastModified() < contentLastModified(completeFile))
+			return null;
+		try {
+			TorrentFile torrent = TorrentFile.load(torrentFile);
+			if (torrent.fileName.equals(fileName)
+					&& torrent.fileLength == contentLength(completeFile)
+					&& torrent.isDirectory() == completeFile.isDirectory()) {
+				stateOf(fileName).torrent = torrent;
+				return torrent;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Salva il descrittore <param>torrent</param> cosi' che il file possa essere publicato di
+	 * nuovo senza ricalcolare gli hash dei pezzi (vedi {@link #loadTorrent(String)}).
+	 * 
+	 * @param torrent
+	 *            il descrittore da salvare
+	 */
+	void saveTorrent(TorrentFile torrent) {
+		stateOf(torrent.fileName).torrent = torrent;
+		try {
+			torrent.save(new File(this.getAbsolutePathOfTorrentFile(torrent.fileName)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Restituisce il nome del descrittore salvato del file <param>fileName</param> relativo alla
+	 * directory dei descrittori.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return il nome del descrittore salvato del file <param>fileName</param>
+	 */
+	private String getAbsolutePathOfTorrentFile(String fileName) {
+		return this.torrentFileDirName + File.separatorChar + fileName + TORRENT_SUFFIX;
+	}
+
+	/**
+	 * Rende completo il file di appoggio del file descritto da <param>torrent</param>: il file
+	 * viene scritto su disco e spostato nella directory dei file completi. Il file rimane aperto
+	 * cosi' che i pezzi in corso di invio ad altri peer non vengano interrotti.
 	 * 
 	 * @param torrent
 	 *            il descrittore del file da creare
@@ -261,52 +1259,77 @@ class FileManager {
 	 * @throws IllegalArgumentException
 	 *             se il peer non possiede tutte le parti del file
 	 */
-	synchronized void composeFile(TorrentFile torrent) throws IllegalArgumentException {
-		try {
-			long offset;
-			FileOutputStream out = new FileOutputStream(this
-					.getAbsolutePathOfCompleteFile(torrent.fileName));
-			byte[] buffer = new byte[TorrentFile.PIECE_LENGTH];
-			for (offset = 0; offset < torrent.fileLength; offset += TorrentFile.PIECE_LENGTH) {
-				File partFile = new File(this.getAbsolutePathOfPartFile(torrent.fileName, offset));
-				FileInputStream in = new FileInputStream(partFile);
-				int length = in.read(buffer);
-				out.write(buffer, 0, length);
-				in.close();
-				partFile.delete();
-			}
-			out.close();
-		} catch (FileNotFoundException e) {
+	void composeFile(TorrentFile torrent) throws IllegalArgumentException {
+		if (!hasACompleteCopy(torrent))
 			throw new IllegalArgumentException(" il peer non possiede una copia completa del file ");
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
+		TorrentState state = stateOf(torrent.fileName);
+		synchronized (state) {
+			try {
+				File completeFile = new File(this.getAbsolutePathOfCompleteFile(torrent.fileName));
+				if (completeFile.exists())
+					return;
+				TorrentStorage storage;
+				if ((storage = state.storage) != null) {
+					storage.force();
+					storage.moveTo(completeFile);
+				} else {
+					File partFile = new File(this.getAbsolutePathOfPartFile(torrent.fileName));
+					if (!partFile.renameTo(completeFile))
+						throw new IOException(" unable to move " + partFile
+								+ " to complete file directory");
+				}
+				if (state.resumeIndex != null) {
+					state.resumeIndex.abandon();
+					state.resumeIndex = null;
+				}
+				new File(this.getAbsolutePathOfResumeIndex(torrent.fileName)).delete();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
 		}
 	}
 
 	/**
 	 * 
-	 * Restituisce il nome del file che memorizza il pezzo <param>offset</param> del file
-	 * <param>fileName</param> relativo alla direcotory delle parti di file.
+	 * Restituisce il nome del file di appoggio del file <param>fileName</param> relativo alla
+	 * direcotory delle parti di file.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return il nome del file di appoggio del file <param>fileName</param> relativo alla
+	 *         direcotory delle parti di file.
+	 */
+	private String getAbsolutePathOfPartFile(String fileName) {
+		return this.partFileDirName + File.separatorChar + fileName + PART_SUFFIX;
+	}
+
+	/**
+	 * Restituisce il nome dell'indice di ripresa del file <param>fileName</param> relativo alla
+	 * direcotory delle parti di file.
 	 * 
 	 * @param fileName
 	 *            il nome del file
-	 * @param offset
-	 *            l'offset del pezzo
-	 * @return il nome del file che memorizza il pezzo <param>offset</param> del file
-	 *         <param>fileName</param> relativo alla direcotory delle parti di file.
+	 * @return il nome dell'indice di ripresa del file <param>fileName</param> relativo alla
+	 *         direcotory delle parti di file.
 	 */
-	synchronized private String getAbsolutePathOfPartFile(String fileName, long offset) {
-		return this.partFileDirName + File.separatorChar + fileName + ".part." + offset;
+	private String getAbsolutePathOfResumeIndex(String fileName) {
+		return this.partFileDirName + File.separatorChar + fileName + RESUME_SUFFIX;
 	}
 
 	/**
-	 * Restituisce l'insieme dei file posseduti con l'indice dei relativi pezzi.
+	 * Restituisce l'insieme dei file posseduti con una copia dell'indice dei relativi pezzi.
 	 * 
-	 * @return l'insieme dei file posseduti con l'indice dei relativi pezzi.
+	 * @return l'insieme dei file posseduti con una copia dell'indice dei relativi pezzi.
 	 */
-	synchronized Set<Entry<String, ArrayList<Long>>> getOwned() {
-		return ownedPartMap.entrySet();
+	Set<Entry<String, PieceBitfield>> getOwned() {
+		Map<String, PieceBitfield> owned = new HashMap<String, PieceBitfield>();
+		for (Entry<String, TorrentState> entry : stateMap.entrySet()) {
+			PieceBitfield pieces;
+			if ((pieces = entry.getValue().owned) != null)
+				owned.put(entry.getKey(), new PieceBitfield(pieces));
+		}
+		return owned.entrySet();
 	}
 
 	/**
@@ -319,12 +1342,12 @@ class FileManager {
 	 * @return <code>true</code> se il peer possiede una copia completa del file il cui
 	 *         descrittore e' <param>torrent</param>; altrimenti restituisce <code>false</code>
 	 */
-	synchronized boolean hasACompleteCopy(TorrentFile torrent) {
-		ArrayList<Long> piecesList;
-		if ((piecesList = ownedPartMap.get(torrent.fileName)) == null) {
+	boolean hasACompleteCopy(TorrentFile torrent) {
+		PieceBitfield owned;
+		if ((owned = ownedOf(torrent.fileName)) == null) {
 			return false;
 		}
-		return (piecesList.size() == torrent.getPiecesNumber());
+		return owned.size() == torrent.getPiecesNumber() && owned.isComplete();
 
 	}
 
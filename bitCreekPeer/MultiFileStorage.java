@@ -0,0 +1,262 @@
+package bitCreekPeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import bitCreekCommon.TorrentFile;
+
+/**
+ * Il contenuto su disco di un torrent che descrive una directory: una directory che contiene un
+ * file di appoggio (vedi {@link PieceStorage}) per ognuno dei file descritti, con lo stesso
+ * percorso relativo. Le letture e le scritture che attraversano il confine tra due file vengono
+ * divise tra i file di appoggio coinvolti.
+ * <p>
+ * Se il contenuto e' aperto in scrittura tutti i file vengono creati subito con la loro lunghezza
+ * finale, ma i file di appoggio vengono aperti solo al primo accesso, in questo modo una directory
+ * con molti file non occupa un descrittore per ognuno di essi.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class MultiFileStorage extends TorrentStorage {
+
+	/** la directory di appoggio */
+	private File root;
+
+	/** i percorsi relativi dei file */
+	private final String[] paths;
+
+	/** le posizioni dei file nel contenuto, piu' la lunghezza del contenuto */
+	private final long[] offsets;
+
+	/** <code>true</code> se il contenuto e' aperto in sola lettura */
+	private final boolean readOnly;
+
+	/** i file di appoggio gia' aperti */
+	private final PieceStorage[] files;
+
+	/**
+	 * Apre la directory di appoggio <param>root</param> che contiene i file di percorsi relativi
+	 * <param>paths</param>, separati da '/', e lunghezze <param>lengths</param>. Se il contenuto
+	 * e' aperto in scrittura i file mancanti vengono creati e quelli di lunghezza diversa vengono
+	 * portati alla loro lunghezza.
+	 * 
+	 * @param root
+	 *            la directory di appoggio
+	 * @param paths
+	 *            i percorsi relativi dei file nell'ordine in cui vengono concatenati
+	 * @param lengths
+	 *            le lunghezze dei file
+	 * @param readOnly
+	 *            <code>true</code> se il contenuto deve essere aperto in sola lettura
+	 * @throws IOException
+	 *             se non e' possibile creare i file
+	 */
+	MultiFileStorage(File root, String[] paths, long[] lengths, boolean readOnly)
+			throws IOException {
+		if (paths.length != lengths.length)
+			throw new IllegalArgumentException(" paths and lengths differ in number ");
+		this.root = root;
+		this.paths = paths.clone();
+		this.readOnly = readOnly;
+		this.offsets = new long[paths.length + 1];
+		this.files = new PieceStorage[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			if (lengths[i] < 0)
+				throw new IllegalArgumentException(" negative length ");
+			offsets[i + 1] = offsets[i] + lengths[i];
+		}
+		if (readOnly)
+			return;
+		for (int i = 0; i < paths.length; i++) {
+			File file = fileOf(i);
+			file.getParentFile().mkdirs();
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				if (randomAccessFile.length() != lengths[i])
+					randomAccessFile.setLength(lengths[i]);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Apre la directory di appoggio <param>root</param> dei file descritti da
+	 * <param>torrent</param>.
+	 * 
+	 * @param root
+	 *            la directory di appoggio
+	 * @param torrent
+	 *            il descrittore della directory
+	 * @param readOnly
+	 *            <code>true</code> se il contenuto deve essere aperto in sola lettura
+	 * @throws IOException
+	 *             se non e' possibile creare i file
+	 */
+	MultiFileStorage(File root, TorrentFile torrent, boolean readOnly) throws IOException {
+		this(root, pathsOf(torrent), lengthsOf(torrent), readOnly);
+	}
+
+	private static String[] pathsOf(TorrentFile torrent) {
+		String[] paths = new String[torrent.getFilesNumber()];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = torrent.getFilePath(i);
+		return paths;
+	}
+
+	private static long[] lengthsOf(TorrentFile torrent) {
+		long[] lengths = new long[torrent.getFilesNumber()];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = torrent.getFileLength(i);
+		return lengths;
+	}
+
+	/** restituisce il file di indice <param>index</param> nella directory di appoggio */
+	private File fileOf(int index) {
+		return new File(root, paths[index].replace('/', File.separatorChar));
+	}
+
+	/** restituisce l'indice del file che contiene il byte in posizione <param>position</param> */
+	private int indexOf(long position) {
+		int low = 0, high = paths.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (offsets[middle] <= position)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/** restituisce il file di appoggio di indice <param>index</param> aprendolo se necessario */
+	synchronized private PieceStorage file(int index) throws IOException {
+		if (files[index] == null)
+			files[index] = new PieceStorage(fileOf(index), offsets[index + 1] - offsets[index],
+					readOnly);
+		return files[index];
+	}
+
+	@Override
+	void write(long offset, ByteBuffer[] srcs) throws IOException {
+		if (readOnly)
+			throw new IllegalStateException(" storage " + root + " is read only ");
+		long count = 0;
+		for (ByteBuffer src : srcs)
+			count += src.remaining();
+		if (offset < 0 || offset + count > getLength())
+			throw new IllegalArgumentException(" write out of bounds: offset=" + offset
+					+ ", count=" + count + ", length=" + getLength());
+		int buffer = 0;
+		for (int index = indexOf(offset); count > 0; index++) {
+			long n = Math.min(count, offsets[index + 1] - offset);
+			if (n == 0)
+				continue;
+			// i buffer, o le loro parti, che cadono nel file di indice index
+			ByteBuffer[] slices = new ByteBuffer[srcs.length - buffer];
+			int sliced = 0;
+			for (long left = n; left > 0; buffer++) {
+				ByteBuffer slice = srcs[buffer].slice();
+				if (slice.remaining() > left) {
+					slice.limit((int) left);
+					srcs[buffer].position(srcs[buffer].position() + (int) left);
+					buffer--;
+				} else {
+					srcs[buffer].position(srcs[buffer].limit());
+				}
+				left -= slice.remaining();
+				slices[sliced++] = slice;
+			}
+			ByteBuffer[] run = new ByteBuffer[sliced];
+			System.arraycopy(slices, 0, run, 0, sliced);
+			file(index).write(offset - offsets[index], run);
+			offset += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	int read(long offset, byte[] dst, int count) throws IOException {
+		if (offset < 0 || offset > getLength())
+			throw new IllegalArgumentException(" read out of bounds: offset=" + offset
+					+ ", length=" + getLength());
+		count = (int) Math.min(count, getLength() - offset);
+		read(offset, ByteBuffer.wrap(dst, 0, count));
+		return count;
+	}
+
+	@Override
+	void read(long offset, ByteBuffer dst) throws IOException {
+		if (offset < 0 || offset + dst.remaining() > getLength())
+			throw new IllegalArgumentException(" read out of bounds: offset=" + offset
+					+ ", count=" + dst.remaining() + ", length=" + getLength());
+		for (int index = indexOf(offset); dst.hasRemaining(); index++) {
+			int n = (int) Math.min(dst.remaining(), offsets[index + 1] - offset);
+			if (n == 0)
+				continue;
+			ByteBuffer slice = dst.slice();
+			slice.limit(n);
+			file(index).read(offset - offsets[index], slice);
+			dst.position(dst.position() + n);
+			offset += n;
+		}
+	}
+
+	/**
+	 * Invia al piu' <param>count</param> byte con un solo tentativo; i byte inviati appartengono
+	 * tutti allo stesso file.
+	 */
+	@Override
+	long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		if (offset < 0 || offset + count > getLength())
+			throw new IllegalArgumentException(" transfer out of bounds: offset=" + offset
+					+ ", count=" + count + ", length=" + getLength());
+		if (count == 0)
+			return 0;
+		int index = indexOf(offset);
+		return file(index).transferTo(offset - offsets[index], Math.min(count,
+				offsets[index + 1] - offset), target);
+	}
+
+	@Override
+	synchronized void force() throws IOException {
+		for (PieceStorage file : files)
+			if (file != null)
+				file.force();
+	}
+
+	@Override
+	synchronized void close() throws IOException {
+		for (int i = 0; i < files.length; i++) {
+			if (files[i] != null)
+				files[i].close();
+			files[i] = null;
+		}
+	}
+
+	/**
+	 * Sposta la directory di appoggio in <param>destination</param>. I file di appoggio gia'
+	 * aperti rimangono aperti e possono continuare ad essere letti, quelli aperti in seguito
+	 * vengono cercati nella nuova directory.
+	 */
+	@Override
+	synchronized void moveTo(File destination) throws IOException {
+		if (!root.renameTo(destination))
+			throw new IOException(" unable to move " + root + " to " + destination);
+		root = destination;
+	}
+
+	@Override
+	synchronized File getFile() {
+		return root;
+	}
+
+	@Override
+	long getLength() {
+		return offsets[paths.length];
+	}
+}
@@ -7,20 +7,36 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import bitCreekCommon.Peer;
+import bitCreekCommon.PieceBitfield;
 import bitCreekCommon.TorrentFile;
 
 /**
- * Il client del peer. Si occupa di scaricare uno e un solo file.
+ * Il client del peer. Si occupa di scaricare uno e un solo file, tutto oppure solo i pezzi che
+ * coprono alcuni intervalli di byte (vedi {@link PiecesChooser}). Con ogni peer dello swarm viene
+ * aperta una sola connessione persistente (vedi {@link PiecesDownloader}) che rimane aperta
+ * finche' il peer ha pezzi da offrire.
+ * <p>
+ * I nuovi peer vengono scoperti soprattutto dai peer connessi (vedi {@link PeerExchange}): ogni
+ * {@link #TRACKER_QUERY_DELAY_MILLIS} millisecondi il client contatta i peer scoperti. Il tracker
+ * viene interrogato all'inizio e poi in media ogni <code>bitCreek.trackerQueryMillis</code>
+ * millisecondi (per default {@link #DEFAULT_TRACKER_QUERY_INTERVAL_MILLIS}), con un intervallo
+ * scelto a caso tra la meta' e una volta e mezza la media cosi' che i client non lo interroghino
+ * tutti insieme; viene interrogato prima, ma al piu' ogni
+ * {@link #TRACKER_QUERY_DELAY_MILLIS} millisecondi, solo se non ci sono connessioni aperte ne'
+ * peer scoperti da contattare.
  * 
  * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
  * 
@@ -28,8 +44,12 @@ import bitCreekCommon.TorrentFile;
 class Peer2PeerClient extends Thread {
 
 	private static class Count {
-		/** il numero massimo di connessioni in download che un peer puo' stabilire con altri peer */
-		private static final int MAX_DOWNLOAD_CONNECTION = 100;
+		/**
+		 * il numero massimo di connessioni in download che un peer puo' stabilire con altri peer,
+		 * per default 100 oppure 16384 se le connessioni sono servite da thread virtuali
+		 */
+		private static final int MAX_DOWNLOAD_CONNECTION = Integer.getInteger(
+				"bitCreek.maxDownloadConnections", PeerExecutors.isVirtual() ? 1 << 14 : 100);
 
 		private static int connectionCount = 0;
 
@@ -42,6 +62,20 @@ class Peer2PeerClient extends Thread {
 		}
 	}
 
+	/**
+	 * il tempo minimo in millisecondi tra due interrogazioni del tracker e tra due contatti dei
+	 * peer scoperti
+	 */
+	private static final long TRACKER_QUERY_DELAY_MILLIS = 2000;
+
+	/** l'intervallo medio di default in millisecondi tra due interrogazioni del tracker */
+	private static final long DEFAULT_TRACKER_QUERY_INTERVAL_MILLIS = 300000;
+
+	/** l'intervallo medio in millisecondi tra due interrogazioni del tracker */
+	private static final long TRACKER_QUERY_INTERVAL_MILLIS = Math.max(
+			TRACKER_QUERY_DELAY_MILLIS, Long.getLong("bitCreek.trackerQueryMillis",
+					DEFAULT_TRACKER_QUERY_INTERVAL_MILLIS));
+
 	/** l'interfaccia di output */
 	private final OutInterface log;
 
@@ -52,11 +86,26 @@ class Peer2PeerClient extends Thread {
 	private TorrentFile torrent;
 
 	/** elenco di peer non fidati */
-	private final ArrayList<Peer> bannedList;
+	private final Set<Peer> bannedList;
 
 	/** l'indirizzo del server */
 	private String serverAddress;
 
+	/** il server del peer */
+	private final Peer2PeerServer p2pServer;
+
+	/**
+	 * le connessioni aperte con gli altri peer, ciascuna servita da un {@link PiecesDownloader};
+	 * protetto dal proprio monitor
+	 */
+	private final Map<Peer, PiecesDownloader> downloadersMap;
+
+	/** <code>true</code> se i pezzi vengono scaricati in ordine di lettura */
+	private final boolean sequential;
+
+	/** i pezzi da scaricare oppure <code>null</code> se si vuole tutto il file */
+	private final PieceBitfield wanted;
+
 	/**
 	 * Crea un nuovo client del peer che cerca di scaricare il file descritto da <param>torrent</param>
 	 * 
@@ -70,10 +119,18 @@ class Peer2PeerClient extends Thread {
 	 *            la lista dei peer non fidati
 	 * @param serverAddress
 	 *            l'indirizzo del server
+	 * @param p2pServer
+	 *            il server del peer
+	 * @param sequential
+	 *            <code>true</code> se i pezzi devono essere scaricati in ordine a partire dalla
+	 *            posizione di lettura del file (vedi {@link PiecesChooser})
+	 * @param wanted
+	 *            i pezzi da scaricare oppure <code>null</code> se si vuole tutto il file
 	 * @throws TooMuchConnectionException
 	 */
 	Peer2PeerClient(TorrentFile torrent, OutInterface log, FileManager fileManager,
-			ArrayList<Peer> bannedList, String serverAddress) throws TooMuchConnectionException {
+			Set<Peer> bannedList, String serverAddress, Peer2PeerServer p2pServer,
+			boolean sequential, PieceBitfield wanted) throws TooMuchConnectionException {
 		if (!Count.otherConnection())
 			throw new TooMuchConnectionException();
 		this.torrent = torrent;
@@ -81,102 +138,189 @@ class Peer2PeerClient extends Thread {
 		this.fileManager = fileManager;
 		this.bannedList = bannedList;
 		this.serverAddress = serverAddress;
+		this.p2pServer = p2pServer;
+		this.downloadersMap = new HashMap<Peer, PiecesDownloader>();
+		this.sequential = sequential;
+		this.wanted = wanted;
+	}
+
+	/**
+	 * Restituisce <code>true</code> se il file viene scaricato in ordine a partire dalla
+	 * posizione di lettura.
+	 * 
+	 * @return <code>true</code> se lo scaricamento e' sequenziale
+	 */
+	boolean isSequential() {
+		return sequential;
+	}
+
+	/**
+	 * Restituisce i pezzi da scaricare oppure <code>null</code> se si vuole tutto il file.
+	 * 
+	 * @return i pezzi da scaricare oppure <code>null</code>
+	 */
+	PieceBitfield getWanted() {
+		return wanted;
 	}
 
 	@Override
 	public void run() {
+		ExecutorService pool = PeerExecutors.newExecutor("downloader " + torrent.fileName + " ");
+		PiecesChooser partChooser = null;
 		try {
-			PiecesChooser partChooser = new PiecesChooser(torrent.fileName, fileManager);
+			fileManager.resume(torrent);
+			/* dopo la ripresa, cosi' che i pezzi ripresi non siano da scaricare */
+			partChooser = new PiecesChooser(torrent, fileManager, sequential, wanted);
 			ArrayList<Peer> triedPeerList = new ArrayList<Peer>();
-			while (!fileManager.hasACompleteCopy(torrent) && !this.isInterrupted()) {
-				/* P contatta il Tracker TCP per ottenere la lista dei peer. */
-				SSLSocketFactory socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-				SSLSocket socket = (SSLSocket) socketFactory.createSocket(serverAddress,
-						torrent.tPort);
-
-				socket.setEnabledCipherSuites(socket.getEnabledCipherSuites());
-
-				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-				ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-				/* P invia una query al tracker */
-				out.writeObject("QUERY");
-				out.writeObject(torrent.fileName);
-
-				/*
-				 * il tracker risponde con una lista che contiene gli indirizzi che fanno parte
-				 * dello swarm del file
-				 */
-				ArrayList<Peer> peerList = (ArrayList<Peer>) in.readObject();
-
-				Iterator<Peer> iterator = peerList.iterator();
-				while (iterator.hasNext()) {
-					Peer next = iterator.next();
-					if (triedPeerList.contains(next)
-							|| InetAddress.getLocalHost().equals(next.getAddress())
-							|| bannedList.contains(next))
-						iterator.remove();
+			PeerExchange peerExchange = p2pServer.getPeerExchange();
+			Random random = new Random();
+			long lastQuery = 0;
+			long nextQuery = 0;
+			while (!fileManager.hasPieces(torrent, wanted) && !this.isInterrupted()) {
+				/* i peer scoperti dai peer connessi vengono contattati senza chiedere al tracker */
+				LinkedHashSet<Peer> peerList = new LinkedHashSet<Peer>(peerExchange
+						.takeCandidates(torrent.fileName));
+				long now = System.currentTimeMillis();
+				boolean starving;
+				synchronized (downloadersMap) {
+					starving = downloadersMap.isEmpty() && peerList.isEmpty();
 				}
-				ThreadPoolExecutor pool = new ThreadPoolExecutor(100, 100, 1000,
-						TimeUnit.MILLISECONDS,
-						(BlockingQueue) new LinkedBlockingQueue<PiecesDownloader>());
-				for (Peer bannedPeer : bannedList)
-					for (int i = 0; i < peerList.size(); i++)
-						if (peerList.get(i).equals(bannedPeer))
-							peerList.remove(i);
-
-				if (peerList.isEmpty()) {
-					log.println(" file " + torrent.fileName
-							+ " not retrieved completely but peer list is empty");
-					try {
-						socket.close();
-						out.close();
-						in.close();
-					} catch (Exception e) {
+				boolean queried = now >= nextQuery
+						|| (starving && now - lastQuery >= TRACKER_QUERY_DELAY_MILLIS);
+				if (queried) {
+					peerList.addAll(queryTracker());
+					lastQuery = now;
+					nextQuery = now + TRACKER_QUERY_INTERVAL_MILLIS / 2
+							+ (long) (random.nextDouble() * TRACKER_QUERY_INTERVAL_MILLIS);
+				}
+
+				/* i peer con cui c'e' gia' una connessione aperta non vengono ricontattati */
+				synchronized (downloadersMap) {
+					Iterator<Peer> iterator = peerList.iterator();
+					while (iterator.hasNext()) {
+						Peer next = iterator.next();
+						if (triedPeerList.contains(next)
+								|| InetAddress.getLocalHost().equals(next.getAddress())
+								|| bannedList.contains(next) || downloadersMap.containsKey(next))
+							iterator.remove();
+					}
+					if (queried && peerList.isEmpty() && downloadersMap.isEmpty()) {
+						log.println(" file " + torrent.fileName
+								+ " not retrieved completely but peer list is empty");
+						return;
 					}
-					return;
 				}
 				for (Peer p : peerList)
 					System.out.println(this.getClass().getCanonicalName() + " "
 							+ p.toString());
 
-				int newEstablishedConnection = 0;
-				for (Peer p2pServer : peerList) {
+				for (final Peer peer : peerList) {
 					if (!Count.otherConnection())
 						break;
 					try {
 						if (this.isInterrupted())
 							break;
-						pool.submit(new PiecesDownloader(p2pServer, torrent, bannedList,
-								fileManager, partChooser, log));
+						final PiecesDownloader downloader = new PiecesDownloader(peer, torrent,
+								bannedList, fileManager, partChooser, log, p2pServer.getChoker(),
+								peerExchange, p2pServer.getPort());
 						Count.add(1);
-						newEstablishedConnection++;
+						synchronized (downloadersMap) {
+							downloadersMap.put(peer, downloader);
+						}
+						pool.execute(new Runnable() {
+							public void run() {
+								try {
+									downloader.run();
+								} finally {
+									Count.add(-1);
+									synchronized (downloadersMap) {
+										downloadersMap.remove(peer);
+										downloadersMap.notifyAll();
+									}
+								}
+							}
+						});
 					} catch (UnableToConnectToPeerException e) {
 					}
 				}
 
-				pool.shutdown();
-				try {
-					while (!pool.awaitTermination(20, TimeUnit.MINUTES))
-						;
-				} catch (InterruptedException e) {
+				/*
+				 * le connessioni rimangono aperte mentre si attende prima di cercare altri peer.
+				 * Se tutte le connessioni si chiudono si attende che i pezzi scaricati siano
+				 * scritti, perche' diventano posseduti solo dopo essere stati scritti
+				 */
+				long deadline = System.currentTimeMillis() + TRACKER_QUERY_DELAY_MILLIS;
+				boolean idle;
+				synchronized (downloadersMap) {
+					while (!downloadersMap.isEmpty()
+							&& (now = System.currentTimeMillis()) < deadline)
+						downloadersMap.wait(deadline - now);
+					idle = downloadersMap.isEmpty();
 				}
-				pool.shutdownNow();
-				Count.add(-newEstablishedConnection);
-				try {
-					socket.close();
-					out.close();
-					in.close();
-				} catch (Exception e) {
+				if (idle) {
+					fileManager.awaitWrites(torrent.fileName);
+					if (!fileManager.hasPieces(torrent, wanted)
+							&& (now = System.currentTimeMillis()) < deadline)
+						Thread.sleep(deadline - now);
 				}
 			}
+			fileManager.awaitWrites(torrent.fileName);
 			if (fileManager.hasACompleteCopy(torrent))
 				fileManager.composeFile(torrent);
-			log.println("\n file " + torrent.fileName + " downloaded ");
+			log.println("\n " + (wanted == null ? "" : "requested pieces of ") + "file "
+					+ torrent.fileName + " downloaded, duplicate bytes received: "
+					+ partChooser.getDuplicateBytes());
 		} catch (IOException e) {
+		} catch (InterruptedException e) {
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 			System.exit(-1);
+		} finally {
+			synchronized (downloadersMap) {
+				for (PiecesDownloader downloader : downloadersMap.values())
+					downloader.close();
+			}
+			pool.shutdown();
+			/* i thread che scaricano il file non sopravvivono al client */
+			try {
+				while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+					;
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+			}
+			if (partChooser != null)
+				partChooser.close();
+		}
+	}
+
+	/**
+	 * interroga il tracker e restituisce la lista dei peer che fanno parte dello swarm del file
+	 */
+	private ArrayList<Peer> queryTracker() throws IOException, ClassNotFoundException {
+		/* P contatta il Tracker TCP per ottenere la lista dei peer. */
+		SSLSocketFactory socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		SSLSocket socket = (SSLSocket) socketFactory.createSocket(serverAddress, torrent.tPort);
+
+		socket.setEnabledCipherSuites(socket.getEnabledCipherSuites());
+
+		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+		/* P invia una query al tracker */
+		out.writeObject("QUERY");
+		out.writeObject(torrent.fileName);
+
+		/*
+		 * il tracker risponde con una lista che contiene gli indirizzi che fanno parte dello
+		 * swarm del file
+		 */
+		ArrayList<Peer> peerList = (ArrayList<Peer>) in.readObject();
+		try {
+			socket.close();
+			out.close();
+			in.close();
+		} catch (Exception e) {
 		}
+		return peerList;
 	}
 }
@@ -1,30 +1,73 @@
 package bitCreekPeer;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.BindException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import bitCreekCommon.TorrentFile;
+import bitCreekCommon.Peer;
 
 /**
  * Il server del peer bitCreek. Ogni peer si mette in ascolto di connessioni da parte di altri peer.
+ * <p>
+ * Il protocollo con cui un peer scarica dei pezzi e' descritto in {@link PeerWire}. I byte dei
+ * pezzi passano dal file al socket senza essere copiati in memoria.
+ * <p>
+ * Il thread del server accetta le connessioni e le distribuisce a turno tra alcuni thread di
+ * selezione (vedi {@link SelectorLoop}), per default uno per processore, oppure
+ * <code>bitCreek.selectorThreads</code>. Ogni thread di selezione serve tutte le sue connessioni
+ * con letture e scritture non bloccanti, quindi una connessione lenta non blocca le altre e il
+ * numero di connessioni non dipende dal numero di thread: oltre
+ * <code>bitCreek.maxUploadConnections</code> connessioni aperte (per default
+ * {@link #DEFAULT_MAX_UPLOAD_CONNECTION}) le nuove connessioni vengono chiuse subito.
+ * <p>
+ * Il {@link Choker} del server decide quali connessioni servire: le richieste delle connessioni
+ * strozzate vengono scartate.
+ * <p>
+ * Quando il peer ottiene un nuovo pezzo il {@link FileManager} lo notifica al server, che lo
+ * annuncia a tutte le connessioni aperte per lo stesso file (vedi {@link PeerWire#HAVE}): cosi'
+ * i peer che stanno scaricando possono chiedere subito il pezzo anche a questo peer. Allo stesso
+ * modo il server invia ai client i peer connessi per lo stesso file (vedi {@link PeerExchange}).
  * 
  * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
  * 
  */
 class Peer2PeerServer extends Thread {
 
+	/** numero massimo di default di connessioni in upload che puo' gestire il peer */
+	private static final int DEFAULT_MAX_UPLOAD_CONNECTION = 4096;
+
 	/** numero massimo di connessioni in upload che puo' gestire il peer */
-	private static final int MAX_UPLOAD_CONNECTION = 100;
+	private static final int MAX_UPLOAD_CONNECTION = Integer.getInteger(
+			"bitCreek.maxUploadConnections", DEFAULT_MAX_UPLOAD_CONNECTION);
+
+	/**
+	 * numero massimo di richieste di una connessione in attesa di essere servite; oltre questo
+	 * numero il server smette di leggere dalla connessione
+	 */
+	private static final int MAX_PENDING_REQUESTS = 256;
+
+	/** la dimensione iniziale del buffer di lettura di una connessione */
+	private static final int READ_BUFFER_SIZE = 512;
+
+	/** la versione del protocollo non ancora negoziata */
+	private static final int NO_VERSION = 0;
 
 	/** la porta sulla quale e' in ascolto il server del peer */
 	private int p2pServerPort = 5700;
@@ -33,10 +76,22 @@ class Peer2PeerServer extends Thread {
 	final FileManager fileManager;
 
 	/** il socket */
-	ServerSocket server;
+	ServerSocketChannel server;
+
+	/** i thread di selezione che servono le connessioni */
+	private final SelectorLoop[] loops;
+
+	/** il numero di connessioni aperte */
+	private final AtomicInteger connectionsCount = new AtomicInteger();
+
+	/** decide quali connessioni servire */
+	private final Choker choker;
+
+	/** i peer connessi e scoperti per ogni file */
+	private final PeerExchange peerExchange;
 
-	/** il pool che esegue i thread che servono le richieste dei peer */
-	private ThreadPoolExecutor pool;
+	/** <code>true</code> se il server e' stato terminato */
+	private volatile boolean stopped;
 
 	/**
 	 * Crea un nuovo server peer to peer
@@ -46,88 +101,619 @@ class Peer2PeerServer extends Thread {
 	 */
 	Peer2PeerServer(FileManager fileManager) {
 		this.fileManager = fileManager;
-		pool = new ThreadPoolExecutor(10, MAX_UPLOAD_CONNECTION, 10, TimeUnit.SECONDS,
-				new LinkedBlockingQueue<Runnable>());
+		this.choker = new Choker();
+		this.peerExchange = new PeerExchange();
+		this.loops = new SelectorLoop[Math.max(1, Integer.getInteger("bitCreek.selectorThreads",
+				Runtime.getRuntime().availableProcessors()))];
 		BindException bindException = null;
 		do {
 			try {
 				bindException = null;
-				server = new ServerSocket(p2pServerPort);
+				server = ServerSocketChannel.open();
+				server.socket().bind(new InetSocketAddress(p2pServerPort));
 			} catch (BindException e) {
 				bindException = e;
 				p2pServerPort++;
+				try {
+					server.close();
+				} catch (IOException closeException) {
+				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 				System.exit(-1);
 			}
-		} while (bindException != null && this.p2pServerPort < 1 >> 16);
+		} while (bindException != null && this.p2pServerPort < 1 << 16);
+		try {
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new SelectorLoop(i);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		fileManager.addPieceListener(new FileManager.PieceListener() {
+			public void pieceAdded(String fileName, int index) {
+				if (stopped)
+					return;
+				for (SelectorLoop loop : loops)
+					loop.have(fileName, index);
+			}
+
+			public void pieceRemoved(String fileName, int index) {
+				/* i peer connessi se ne accorgono dal rifiuto delle richieste */
+			}
+		});
 	}
 
-	private class ServeASingleUploadRequest implements Runnable {
-		private final Socket connection;
+	/**
+	 * Un thread di selezione: serve con un {@link Selector} tutte le connessioni che gli vengono
+	 * assegnate.
+	 */
+	private class SelectorLoop extends Thread {
+
+		/** il selettore delle connessioni */
+		private final Selector selector;
+
+		/** le connessioni assegnate e non ancora registrate nel selettore */
+		private final ConcurrentLinkedQueue<SocketChannel> added;
 
-		public ServeASingleUploadRequest(Socket connection) {
-			this.connection = connection;
+		/** le connessioni strozzate o servite dal {@link Choker} e non ancora aggiornate */
+		private final ConcurrentLinkedQueue<Connection> changed;
+
+		/** i nuovi pezzi posseduti, con il nome del file, non ancora annunciati */
+		private final ConcurrentLinkedQueue<Map.Entry<String, Integer>> haves;
+
+		SelectorLoop(int number) throws IOException {
+			super("peer server selector " + number);
+			this.selector = Selector.open();
+			this.added = new ConcurrentLinkedQueue<SocketChannel>();
+			this.changed = new ConcurrentLinkedQueue<Connection>();
+			this.haves = new ConcurrentLinkedQueue<Map.Entry<String, Integer>>();
 		}
 
+		/** assegna a questo thread la connessione <param>channel</param> */
+		void add(SocketChannel channel) {
+			added.add(channel);
+			selector.wakeup();
+		}
+
+		/** segnala a questo thread che la connessione <param>connection</param> va aggiornata */
+		void changed(Connection connection) {
+			changed.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * chiede a questo thread di annunciare alle sue connessioni il pezzo di indice
+		 * <param>index</param> del file <param>fileName</param>
+		 */
+		void have(String fileName, int index) {
+			haves.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(fileName, index));
+			selector.wakeup();
+		}
+
+		/** risveglia il thread perche' controlli se il server e' stato terminato */
+		void wakeup() {
+			selector.wakeup();
+		}
+
+		@Override
 		public void run() {
-			synchronized (server) {
+			long nextExchange = System.currentTimeMillis() + PeerExchange.EXCHANGE_PERIOD_MILLIS;
+			try {
+				while (!stopped) {
+					selector.select(Math.max(1, nextExchange - System.currentTimeMillis()));
+					SocketChannel channel;
+					while ((channel = added.poll()) != null)
+						register(channel);
+					Connection connection;
+					while ((connection = changed.poll()) != null)
+						if (!connection.closed)
+							connection.handle(false);
+					if (!haves.isEmpty())
+						announce();
+					if (System.currentTimeMillis() >= nextExchange) {
+						exchange();
+						nextExchange = System.currentTimeMillis()
+								+ PeerExchange.EXCHANGE_PERIOD_MILLIS;
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid())
+							((Connection) key.attachment()).handle(key.isReadable());
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys())
+					((Connection) key.attachment()).close();
+				SocketChannel channel;
+				while ((channel = added.poll()) != null)
+					new Connection(channel, this).close();
 				try {
-					connection.setSendBufferSize(TorrentFile.PIECE_LENGTH);
-					ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-					ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-					/** il peerServer ottiene una query che contiene il nome di un file F */
-					String fileName = (String) in.readObject();
-
-					/**
-					 * il peerServer invia al peerClient la lista dei pezzi disponibili per quel
-					 * file
-					 */
-					out.writeObject(fileManager.getPieceOffests(fileName));
-
-					/** riceve la lista dei pezzi che il peerClient desidera ricevere */
-					ArrayList<Long> choosed = (ArrayList<Long>) in.readObject();
-
-					/** il peerServer invia i pezzi scelti */
-					for (long offset : choosed) {
-						out.writeObject(fileManager.getPiece(fileName, offset));
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		/** accoda gli annunci dei nuovi pezzi alle connessioni aperte per gli stessi file */
+		private void announce() {
+			ArrayList<Map.Entry<String, Integer>> pieces =
+					new ArrayList<Map.Entry<String, Integer>>();
+			Map.Entry<String, Integer> piece;
+			while ((piece = haves.poll()) != null)
+				pieces.add(piece);
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				boolean announced = false;
+				for (Map.Entry<String, Integer> next : pieces)
+					announced |= connection.have(next.getKey(), next.getValue());
+				if (announced && key.isValid())
+					connection.handle(false);
+			}
+		}
+
+		/** invia a tutte le connessioni i peer connessi aggiunti e tolti dall'ultimo invio */
+		private void exchange() {
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				if (connection.exchangePeers() && key.isValid())
+					connection.handle(false);
+			}
+		}
+
+		/** registra nel selettore la connessione <param>channel</param> */
+		private void register(SocketChannel channel) {
+			Connection connection = new Connection(channel, this);
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Lo stato di una connessione con un peer client: il buffer dei byte ricevuti e non ancora
+	 * interpretati, le richieste in attesa di essere servite, il pezzo in corso di invio e se la
+	 * connessione e' strozzata.
+	 */
+	private class Connection implements Choker.Uploader {
+
+		/** il canale della connessione */
+		private final SocketChannel channel;
+
+		/** il thread di selezione che serve la connessione */
+		private final SelectorLoop loop;
+
+		/** il peer client, <code>null</code> finche' non ha inviato la sua porta */
+		private Peer peer;
+
+		/** <code>true</code> se il {@link Choker} ha deciso di strozzare la connessione */
+		private volatile boolean choked;
+
+		/** <code>true</code> se il client sa che la connessione e' strozzata */
+		private boolean chokeSent;
+
+		/** il numero di byte dei pezzi inviati dall'ultima lettura */
+		private final AtomicLong sentBytes;
+
+		/** la chiave della connessione nel selettore */
+		private SelectionKey key;
+
+		/** i byte ricevuti e non ancora interpretati, in modalita' di scrittura */
+		private ByteBuffer in;
+
+		/** la versione del protocollo usata, {@link #NO_VERSION} prima dell'handshake */
+		private int version;
+
+		/** il nome del file richiesto, <code>null</code> finche' non e' stato ricevuto */
+		private String fileName;
+
+		/** gli indici dei pezzi richiesti e non ancora serviti */
+		private final ArrayDeque<Integer> requests;
+
+		/** gli indici dei nuovi pezzi posseduti non ancora annunciati al client */
+		private final ArrayDeque<Integer> haves;
+
+		/** i peer connessi gia' inviati al client */
+		private final HashSet<Peer> exchanged;
+
+		/** il messaggio con i peer connessi aggiunti e tolti da inviare oppure <code>null</code> */
+		private ByteBuffer pex;
+
+		/** <code>true</code> se la connessione e' chiusa */
+		private boolean closed;
+
+		/** il buffer dell'intestazione dei pezzi e dei rifiuti */
+		private final ByteBuffer indexBuffer;
+
+		/**
+		 * i byte da inviare prima del pezzo in corso di invio (l'intestazione del pezzo, il
+		 * rifiuto di una richiesta oppure l'handshake e l'insieme dei pezzi posseduti) oppure
+		 * <code>null</code>
+		 */
+		private ByteBuffer header;
+
+		/** il pezzo in corso di invio se e' stato preso dalla cache oppure <code>null</code> */
+		private ByteBuffer cached;
+
+		/** l'indice del pezzo in corso di invio dal file oppure -1 */
+		private int sending;
+
+		/** il numero di byte del pezzo in corso di invio dal file gia' inviati */
+		private long sent;
+
+		/** la lunghezza del pezzo in corso di invio dal file */
+		private int length;
+
+		Connection(SocketChannel channel, SelectorLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.sentBytes = new AtomicLong();
+			this.in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			this.requests = new ArrayDeque<Integer>();
+			this.haves = new ArrayDeque<Integer>();
+			this.exchanged = new HashSet<Peer>();
+			this.indexBuffer = ByteBuffer.allocate(PeerWire.INT_MESSAGE_LENGTH);
+			this.sending = -1;
+		}
+
+		/**
+		 * serve la connessione quando il selettore la segnala come pronta: legge le nuove
+		 * richieste, invia quanto possibile senza bloccarsi e aggiorna le operazioni di interesse
+		 */
+		void handle(boolean readable) {
+			try {
+				if (readable && channel.read(in) < 0) {
+					close();
+					return;
+				}
+				parse();
+				write();
+				boolean pending = header != null || cached != null || sending >= 0
+						|| !requests.isEmpty() || !haves.isEmpty() || pex != null
+						|| choked != chokeSent;
+				int ops = 0;
+				if (requests.size() < MAX_PENDING_REQUESTS)
+					ops |= SelectionKey.OP_READ;
+				if (pending)
+					ops |= SelectionKey.OP_WRITE;
+				key.interestOps(ops);
+			} catch (IOException e) {
+				close();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				close();
+			}
+		}
+
+		/**
+		 * interpreta i messaggi ricevuti completi finche' le richieste in attesa non sono
+		 * {@link #MAX_PENDING_REQUESTS}: prima l'handshake e poi le richieste e le cancellazioni
+		 */
+		private void parse() throws IOException {
+			in.flip();
+			try {
+				while (in.remaining() >= PeerWire.HEADER_LENGTH
+						&& requests.size() < MAX_PENDING_REQUESTS) {
+					int length = in.getInt(in.position());
+					if (length < 1 || 4 + length > PeerWire.MAX_CONTROL_LENGTH)
+						throw new ProtocolException(" invalid message length " + length);
+					if (in.remaining() < 4 + length) {
+						if (in.capacity() < 4 + length) {
+							ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+							bigger.put(in);
+							in = bigger;
+							in.flip();
+						}
+						return;
 					}
-					out.close();
-					in.close();
-					connection.close();
-				} catch (Exception e) {
-					e.printStackTrace();
+					int end = in.position() + 4 + length;
+					byte type = in.get(in.position() + 4);
+					in.position(in.position() + PeerWire.HEADER_LENGTH);
+					ByteBuffer payload = in.slice();
+					payload.limit(length - 1);
+					in.position(end);
+					receive(type, payload);
 				}
+			} finally {
+				in.compact();
+			}
+		}
+
+		/** gestisce il messaggio di tipo <param>type</param> e contenuto <param>payload</param> */
+		private void receive(byte type, ByteBuffer payload) throws IOException {
+			if (version == NO_VERSION) {
+				if (type != PeerWire.HANDSHAKE)
+					throw new ProtocolException(" handshake expected ");
+				String[] name = new String[1];
+				version = Math.min(PeerWire.VERSION, PeerWire.readHandshake(payload, name));
+				fileName = name[0];
+				choked = chokeSent = version >= PeerWire.CHOKE_VERSION;
+
+				/*
+				 * il peerServer risponde con la versione del protocollo usata da entrambi seguita
+				 * dalla codifica compatta dell'insieme dei pezzi disponibili per quel file
+				 */
+				ByteBuffer handshake = PeerWire.handshake(version, fileName);
+				ByteBuffer bitfield = PeerWire.bitfield(fileManager.getOwnedPieces(fileName));
+				header = ByteBuffer.allocate(handshake.remaining() + bitfield.remaining());
+				header.put(handshake).put(bitfield).flip();
+				return;
+			}
+			switch (type) {
+			case PeerWire.REQUEST:
+				if (payload.remaining() != 4)
+					throw new ProtocolException(" invalid request ");
+				if (!chokeSent)
+					requests.add(payload.getInt());
+				break;
+			case PeerWire.CANCEL:
+				if (payload.remaining() != 4)
+					throw new ProtocolException(" invalid cancel ");
+				requests.removeFirstOccurrence(payload.getInt());
+				break;
+			case PeerWire.PORT:
+				if (payload.remaining() != 4)
+					throw new ProtocolException(" invalid port ");
+				int port = payload.getInt();
+				if (port <= 0 || port >= 1 << 16)
+					throw new ProtocolException(" invalid port " + port);
+				if (peer == null && version >= PeerWire.CHOKE_VERSION) {
+					peer = new Peer(channel.socket().getInetAddress(), port);
+					choker.opened(this);
+					peerExchange.connected(fileName, peer);
+					exchangePeers();
+				}
+				break;
+			default:
+				/* un messaggio sconosciuto viene ignorato */
+			}
+		}
+
+		/** invia senza bloccarsi i pezzi richiesti finche' il canale accetta byte */
+		private void write() throws IOException {
+			while (true) {
+				if (cached != null) {
+					if (header != null) {
+						channel.write(new ByteBuffer[] { header, cached });
+						if (!header.hasRemaining())
+							header = null;
+					} else {
+						channel.write(cached);
+					}
+					if (cached.hasRemaining())
+						return;
+					cached = null;
+				}
+				if (header != null) {
+					channel.write(header);
+					if (header.hasRemaining())
+						return;
+					header = null;
+				}
+				if (sending >= 0) {
+					while (sent < length) {
+						long n = fileManager.transferPiece(fileName, sending, sent, channel);
+						if (n == 0)
+							return;
+						sent += n;
+					}
+					sending = -1;
+				}
+				if (choked != chokeSent) {
+					/* il client viene avvisato dopo il pezzo in corso di invio */
+					chokeSent = choked;
+					if (chokeSent)
+						requests.clear();
+					header = PeerWire.emptyMessage(chokeSent ? PeerWire.CHOKE : PeerWire.UNCHOKE);
+					continue;
+				}
+				if (!haves.isEmpty()) {
+					/* i nuovi pezzi vengono annunciati tutti insieme prima del prossimo pezzo */
+					header = ByteBuffer.allocate(haves.size() * PeerWire.INT_MESSAGE_LENGTH);
+					for (int index : haves)
+						PeerWire.putIntMessage(header, PeerWire.HAVE, index);
+					header.flip();
+					haves.clear();
+					continue;
+				}
+				if (pex != null) {
+					header = pex;
+					pex = null;
+					continue;
+				}
+				if (requests.isEmpty()) {
+					parse();
+					if (requests.isEmpty())
+						return;
+				}
+				startPiece(requests.poll());
+			}
+		}
+
+		/**
+		 * prepara l'invio del pezzo di indice <param>index</param>: dalla cache se possibile,
+		 * altrimenti dal file; se il peer non possiede il pezzo viene inviato un rifiuto
+		 */
+		private void startPiece(int index) throws IOException {
+			int pieceLength;
+			try {
+				pieceLength = fileManager.getLengthOfPiece(fileName, index);
+				cached = fileManager.getCachedPiece(fileName, index);
+			} catch (IllegalArgumentException e) {
+				pieceLength = 0;
+				cached = null;
+			}
+			indexBuffer.clear();
+			if (pieceLength > 0)
+				PeerWire.putPieceHeader(indexBuffer, index, pieceLength);
+			else
+				PeerWire.putIntMessage(indexBuffer, PeerWire.REJECT, index);
+			indexBuffer.flip();
+			header = indexBuffer;
+			if (pieceLength > 0) {
+				sentBytes.addAndGet(pieceLength);
+				fileManager.pieceRequested(fileName, index);
+			}
+			if (pieceLength > 0 && cached == null) {
+				sending = index;
+				sent = 0;
+				length = pieceLength;
+			}
+		}
+
+		/**
+		 * accoda l'annuncio del pezzo di indice <param>index</param> se il client sta scaricando
+		 * il file <param>fileName</param> e conosce gli annunci; restituisce <code>true</code> se
+		 * l'annuncio e' stato accodato
+		 */
+		boolean have(String fileName, int index) {
+			if (closed || version < PeerWire.HAVE_VERSION || !fileName.equals(this.fileName))
+				return false;
+			haves.add(index);
+			return true;
+		}
+
+		/**
+		 * prepara l'invio dei peer connessi per il file del client aggiunti e tolti dall'ultimo
+		 * invio, se il client li conosce e l'invio precedente e' terminato; restituisce
+		 * <code>true</code> se c'e' qualcosa da inviare
+		 */
+		boolean exchangePeers() {
+			if (closed || peer == null || version < PeerWire.PEX_VERSION || pex != null)
+				return false;
+			HashSet<Peer> connected = new HashSet<Peer>(peerExchange.getConnected(fileName));
+			connected.remove(peer);
+			ArrayList<Peer> added = new ArrayList<Peer>();
+			for (Iterator<Peer> i = connected.iterator(); i.hasNext()
+					&& added.size() < PeerExchange.MAX_PEERS_PER_MESSAGE;) {
+				Peer next = i.next();
+				if (!exchanged.contains(next))
+					added.add(next);
+			}
+			ArrayList<Peer> dropped = new ArrayList<Peer>();
+			for (Iterator<Peer> i = exchanged.iterator(); i.hasNext()
+					&& dropped.size() < PeerExchange.MAX_PEERS_PER_MESSAGE;) {
+				Peer next = i.next();
+				if (!connected.contains(next))
+					dropped.add(next);
 			}
+			if (added.isEmpty() && dropped.isEmpty())
+				return false;
+			exchanged.addAll(added);
+			exchanged.removeAll(dropped);
+			pex = PeerWire.pex(added, dropped);
+			return true;
+		}
+
+		/** chiude la connessione */
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			connectionsCount.decrementAndGet();
+			if (peer != null) {
+				choker.closed(this);
+				peerExchange.disconnected(fileName, peer);
+			}
+		}
+
+		public Peer getPeer() {
+			return peer;
+		}
+
+		public long takeSentBytes() {
+			return sentBytes.getAndSet(0);
+		}
+
+		public void setChoked(boolean choked) {
+			this.choked = choked;
+			loop.changed(this);
 		}
 	}
 
 	@Override
 	public void run() {
+		choker.start();
+		for (SelectorLoop loop : loops)
+			loop.start();
 		try {
+			int next = 0;
 			while (true) {
-				Socket connection = server.accept();
-				pool.submit(new ServeASingleUploadRequest(connection));
+				SocketChannel connection = server.accept();
+				if (connectionsCount.incrementAndGet() > MAX_UPLOAD_CONNECTION) {
+					connectionsCount.decrementAndGet();
+					connection.close();
+					continue;
+				}
+				loops[next].add(connection);
+				next = (next + 1) % loops.length;
 			}
 		} catch (SocketException e) {
+		} catch (ClosedChannelException e) {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 			System.exit(-1);
+		} finally {
+			stopped = true;
+			choker.close();
+			for (SelectorLoop loop : loops) {
+				loop.wakeup();
+				try {
+					loop.join();
+				} catch (InterruptedException e) {
+				}
+			}
 		}
 	}
 
 	/**
-	 * Termina questo server.
+	 * Termina questo server chiudendo anche tutte le connessioni aperte.
 	 */
 	void stopServer() {
+		stopped = true;
 		synchronized (server) {
 			try {
 				this.server.close();
 			} catch (IOException e) {
 			}
 		}
+		for (SelectorLoop loop : loops)
+			loop.wakeup();
+	}
+
+	/**
+	 * Restituisce l'oggetto che decide quali connessioni servire, a cui i client del peer
+	 * comunicano i byte scaricati da ogni peer.
+	 * 
+	 * @return l'oggetto che decide quali connessioni servire
+	 */
+	Choker getChoker() {
+		return choker;
+	}
+
+	/**
+	 * Restituisce l'oggetto che tiene traccia dei peer connessi e scoperti per ogni file.
+	 * 
+	 * @return l'oggetto che tiene traccia dei peer connessi e scoperti
+	 */
+	PeerExchange getPeerExchange() {
+		return peerExchange;
 	}
 
 	/**
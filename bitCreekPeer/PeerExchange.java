@@ -0,0 +1,144 @@
+package bitCreekPeer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import bitCreekCommon.Peer;
+
+/**
+ * Tiene traccia, per ogni file, dei peer connessi al peer in entrambe le direzioni e dei peer
+ * scoperti dagli altri peer, cosi' che il peer possa trovare gran parte dello swarm senza
+ * interrogare il tracker.
+ * <p>
+ * Un peer e' connesso per un file se il suo client scarica il file dal server del peer (vedi
+ * {@link Peer2PeerServer}) oppure se il client del peer scarica il file dal suo server (vedi
+ * {@link PiecesDownloader}). Il server invia periodicamente ai client connessi i peer connessi
+ * aggiunti e tolti dall'ultimo invio (vedi {@link PeerWire#PEX}); i peer ricevuti diventano
+ * candidati che il {@link Peer2PeerClient} del file contatta al turno successivo. Per ogni file
+ * vengono ricordati al piu' {@link #MAX_CANDIDATES} candidati.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PeerExchange {
+
+	/** ogni quanti millisecondi il server invia i peer connessi aggiunti e tolti */
+	static final long EXCHANGE_PERIOD_MILLIS = 30000;
+
+	/** il numero massimo di peer aggiunti e di peer tolti in un messaggio */
+	static final int MAX_PEERS_PER_MESSAGE = 50;
+
+	/** il numero massimo di candidati ricordati per ogni file */
+	private static final int MAX_CANDIDATES = 1000;
+
+	/** per ogni file i peer connessi e il numero di connessioni con ciascuno */
+	private final HashMap<String, HashMap<Peer, Integer>> connectedMap;
+
+	/** per ogni file i peer scoperti e non ancora contattati */
+	private final HashMap<String, LinkedHashSet<Peer>> candidatesMap;
+
+	PeerExchange() {
+		this.connectedMap = new HashMap<String, HashMap<Peer, Integer>>();
+		this.candidatesMap = new HashMap<String, LinkedHashSet<Peer>>();
+	}
+
+	/**
+	 * Registra che e' stata aperta una connessione con il peer <param>peer</param> per il file
+	 * <param>fileName</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param peer
+	 *            il peer, identificato dalla porta del suo server
+	 */
+	synchronized void connected(String fileName, Peer peer) {
+		HashMap<Peer, Integer> connected;
+		if ((connected = connectedMap.get(fileName)) == null)
+			connectedMap.put(fileName, connected = new HashMap<Peer, Integer>());
+		Integer count = connected.get(peer);
+		connected.put(peer, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Registra che e' stata chiusa una connessione con il peer <param>peer</param> per il file
+	 * <param>fileName</param> aperta con {@link #connected(String, Peer)}.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param peer
+	 *            il peer
+	 */
+	synchronized void disconnected(String fileName, Peer peer) {
+		HashMap<Peer, Integer> connected;
+		if ((connected = connectedMap.get(fileName)) == null)
+			return;
+		Integer count = connected.get(peer);
+		if (count == null)
+			return;
+		if (count > 1)
+			connected.put(peer, count - 1);
+		else
+			connected.remove(peer);
+		if (connected.isEmpty())
+			connectedMap.remove(fileName);
+	}
+
+	/**
+	 * Restituisce i peer connessi per il file <param>fileName</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return una copia dell'insieme dei peer connessi
+	 */
+	synchronized ArrayList<Peer> getConnected(String fileName) {
+		HashMap<Peer, Integer> connected;
+		if ((connected = connectedMap.get(fileName)) == null)
+			return new ArrayList<Peer>();
+		return new ArrayList<Peer>(connected.keySet());
+	}
+
+	/**
+	 * Registra i peer <param>added</param> ricevuti da un altro peer come candidati per il file
+	 * <param>fileName</param> e toglie dai candidati i peer <param>dropped</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param added
+	 *            i peer connessi all'altro peer
+	 * @param dropped
+	 *            i peer non piu' connessi all'altro peer
+	 */
+	synchronized void discovered(String fileName, Collection<Peer> added,
+			Collection<Peer> dropped) {
+		LinkedHashSet<Peer> candidates;
+		if ((candidates = candidatesMap.get(fileName)) == null)
+			candidatesMap.put(fileName, candidates = new LinkedHashSet<Peer>());
+		candidates.removeAll(dropped);
+		HashMap<Peer, Integer> connected = connectedMap.get(fileName);
+		for (Iterator<Peer> i = added.iterator(); i.hasNext()
+				&& candidates.size() < MAX_CANDIDATES;) {
+			Peer peer = i.next();
+			if (connected == null || !connected.containsKey(peer))
+				candidates.add(peer);
+		}
+		if (candidates.isEmpty())
+			candidatesMap.remove(fileName);
+	}
+
+	/**
+	 * Restituisce e dimentica i candidati per il file <param>fileName</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @return i candidati, eventualmente nessuno
+	 */
+	synchronized ArrayList<Peer> takeCandidates(String fileName) {
+		LinkedHashSet<Peer> candidates;
+		if ((candidates = candidatesMap.remove(fileName)) == null)
+			return new ArrayList<Peer>();
+		return new ArrayList<Peer>(candidates);
+	}
+}
@@ -0,0 +1,99 @@
+package bitCreekPeer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crea gli esecutori dei compiti legati alle connessioni con gli altri peer, che passano quasi
+ * tutto il tempo bloccati su un socket.
+ * <p>
+ * Se la proprieta' di sistema <code>bitCreek.virtualThreads</code> vale <code>true</code> e la
+ * macchina virtuale li supporta (Java 21 o successive) ogni compito viene eseguito in un nuovo
+ * thread virtuale, che occupa pochissima memoria finche' e' bloccato, quindi il numero di
+ * connessioni aperte non e' limitato dalla memoria degli stack dei thread. Altrimenti i compiti
+ * vengono eseguiti da un pool di thread di piattaforma che crea i thread quando servono e li
+ * elimina dopo un secondo di inattivita'. I thread virtuali vengono creati attraverso la
+ * riflessione cosi' che il peer possa essere compilato ed eseguito anche con versioni precedenti
+ * di Java.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+final class PeerExecutors {
+
+	/** <code>true</code> se i compiti vengono eseguiti da thread virtuali */
+	private static final boolean VIRTUAL = Boolean.getBoolean("bitCreek.virtualThreads")
+			&& virtualThreadsSupported();
+
+	private PeerExecutors() {
+	}
+
+	/**
+	 * Restituisce <code>true</code> se i compiti vengono eseguiti da thread virtuali; altrimenti
+	 * <code>false</code>.
+	 * 
+	 * @return <code>true</code> se i compiti vengono eseguiti da thread virtuali; altrimenti
+	 *         <code>false</code>.
+	 */
+	static boolean isVirtual() {
+		return VIRTUAL;
+	}
+
+	/**
+	 * Crea un nuovo esecutore i cui thread hanno nome <param>name</param> seguito da un numero
+	 * progressivo. L'esecutore deve essere terminato con {@link ExecutorService#shutdown()} quando
+	 * non serve piu'.
+	 * 
+	 * @param name
+	 *            il prefisso dei nomi dei thread
+	 * @return il nuovo esecutore
+	 */
+	static ExecutorService newExecutor(String name) {
+		if (VIRTUAL) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+						name, 0L);
+				ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(
+						builder);
+				Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+						ThreadFactory.class);
+				return (ExecutorService) newExecutor.invoke(null, factory);
+			} catch (Exception e) {
+				throw new IllegalStateException(" unable to create virtual threads ", e);
+			}
+		}
+		final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		final String prefix = name;
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private int count;
+
+					public synchronized Thread newThread(Runnable task) {
+						Thread thread = defaultFactory.newThread(task);
+						thread.setName(prefix + count++);
+						return thread;
+					}
+				});
+	}
+
+	/** controlla se la macchina virtuale supporta i thread virtuali */
+	private static boolean virtualThreadsSupported() {
+		try {
+			/* dove i thread virtuali sono un'anteprima il metodo esiste ma fallisce */
+			Thread.class.getMethod("ofVirtual").invoke(null);
+			Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return true;
+		} catch (Exception e) {
+			System.err.println("virtual threads not supported by this java virtual machine, "
+					+ "using platform threads");
+			return false;
+		}
+	}
+}
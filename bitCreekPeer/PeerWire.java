@@ -0,0 +1,349 @@
+package bitCreekPeer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+import bitCreekCommon.Peer;
+import bitCreekCommon.PieceBitfield;
+
+/**
+ * La codifica binaria dei messaggi scambiati tra due peer. Ogni messaggio e' formato da:
+ * <ul>
+ * <li>4 byte: la lunghezza n del resto del messaggio</li>
+ * <li>1 byte: il tipo del messaggio</li>
+ * <li>n - 1 byte: il contenuto del messaggio, che dipende dal tipo</li>
+ * </ul>
+ * I tipi di messaggio e i loro contenuti sono:
+ * <ul>
+ * <li>{@link #HANDSHAKE}: 4 byte con il numero magico {@link #MAGIC}, 4 byte con la versione del
+ * protocollo e il nome del file codificato in UTF-8</li>
+ * <li>{@link #BITFIELD}: la codifica compatta dell'insieme dei pezzi posseduti (vedi
+ * {@link PieceBitfield#toByteArray()})</li>
+ * <li>{@link #REQUEST}: 4 byte con l'indice del pezzo richiesto</li>
+ * <li>{@link #PIECE}: 4 byte con l'indice del pezzo seguiti dai byte del pezzo</li>
+ * <li>{@link #REJECT}: 4 byte con l'indice di un pezzo richiesto che non e' posseduto</li>
+ * <li>{@link #CANCEL}: 4 byte con l'indice di un pezzo richiesto che non serve piu'</li>
+ * <li>{@link #PORT}: 4 byte con la porta su cui e' in ascolto il server del peer client</li>
+ * <li>{@link #CHOKE} e {@link #UNCHOKE}: nessun contenuto</li>
+ * <li>{@link #HAVE}: 4 byte con l'indice di un pezzo appena ottenuto</li>
+ * <li>{@link #PEX}: due elenchi di peer, quelli nuovi e quelli non piu' connessi; ogni elenco e'
+ * formato da 2 byte con il numero di peer seguiti dai peer, ciascuno codificato con 1 byte con la
+ * lunghezza dell'indirizzo (4 o 16), l'indirizzo e 2 byte con la porta del server del peer</li>
+ * </ul>
+ * Il client apre la connessione inviando {@link #HANDSHAKE} con la versione piu' alta che
+ * conosce; il server risponde con {@link #HANDSHAKE} con la versione usata da entrambi, cioe' la
+ * minore tra la sua e quella del client, seguito da {@link #BITFIELD}. Poi il client invia le
+ * richieste senza attendere le risposte e il server risponde a ogni richiesta non cancellata con
+ * {@link #PIECE} o {@link #REJECT}, nell'ordine delle richieste. Chi riceve un messaggio di tipo
+ * sconosciuto lo ignora, cosi' che versioni successive possano aggiungere nuovi messaggi. Il
+ * client chiude la connessione quando non ha piu' pezzi da chiedere.
+ * <p>
+ * Dalla versione {@link #CHOKE_VERSION} il client invia {@link #PORT} subito dopo l'handshake,
+ * cosi' che il server sappia quale peer e' il client, e la connessione inizia strozzata: il client
+ * invia richieste solo dopo aver ricevuto {@link #UNCHOKE}. Quando riceve {@link #CHOKE} il
+ * client sa che il server ha scartato tutte le richieste a cui non ha ancora risposto e che
+ * scartera' quelle che riceve fino al prossimo {@link #UNCHOKE} (vedi {@link Choker}).
+ * <p>
+ * Dalla versione {@link #HAVE_VERSION} il server invia {@link #HAVE} ogni volta che il suo peer
+ * ottiene un nuovo pezzo del file, tra un pezzo e l'altro; i pezzi ottenuti prima dell'handshake
+ * sono gia' in {@link #BITFIELD}. Il client non chiude la connessione con un server che non
+ * possiede tutto il file anche se al momento non ha pezzi da chiedere, perche' il server potrebbe
+ * annunciarne di nuovi.
+ * <p>
+ * Dalla versione {@link #PEX_VERSION} il server invia {@link #PEX} con i peer connessi al suo
+ * peer per lo stesso file, subito dopo aver ricevuto {@link #PORT} e poi periodicamente con le
+ * sole differenze rispetto agli elenchi gia' inviati (vedi {@link PeerExchange}).
+ * <p>
+ * I messaggi vengono codificati e decodificati direttamente in {@link ByteBuffer}; i byte dei
+ * pezzi non passano per il buffer ma vanno dal canale al pezzo e dal file al canale.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+final class PeerWire {
+
+	/** il numero magico all'inizio di ogni handshake */
+	static final int MAGIC = 0x42435057;
+
+	/** la versione del protocollo */
+	static final int VERSION = 4;
+
+	/** la prima versione del protocollo in cui il server puo' strozzare le connessioni */
+	static final int CHOKE_VERSION = 2;
+
+	/** la prima versione del protocollo in cui il server annuncia i nuovi pezzi */
+	static final int HAVE_VERSION = 3;
+
+	/** la prima versione del protocollo in cui il server invia i peer connessi */
+	static final int PEX_VERSION = 4;
+
+	/** la lunghezza dell'intestazione di un messaggio: lunghezza e tipo */
+	static final int HEADER_LENGTH = 5;
+
+	/** la lunghezza di un messaggio che contiene solo un intero */
+	static final int INT_MESSAGE_LENGTH = HEADER_LENGTH + 4;
+
+	/** la lunghezza massima di un messaggio diverso da {@link #PIECE} e {@link #BITFIELD} */
+	static final int MAX_CONTROL_LENGTH = HEADER_LENGTH + 8 + (1 << 16);
+
+	/** apre la connessione */
+	static final byte HANDSHAKE = 0;
+
+	/** l'insieme dei pezzi posseduti */
+	static final byte BITFIELD = 1;
+
+	/** la richiesta di un pezzo */
+	static final byte REQUEST = 2;
+
+	/** un pezzo */
+	static final byte PIECE = 3;
+
+	/** il rifiuto di una richiesta */
+	static final byte REJECT = 4;
+
+	/** la cancellazione di una richiesta */
+	static final byte CANCEL = 5;
+
+	/** la porta del server del peer client */
+	static final byte PORT = 6;
+
+	/** il server scarta le richieste */
+	static final byte CHOKE = 7;
+
+	/** il server serve le richieste */
+	static final byte UNCHOKE = 8;
+
+	/** l'annuncio di un nuovo pezzo posseduto */
+	static final byte HAVE = 9;
+
+	/** i peer connessi aggiunti e tolti */
+	static final byte PEX = 10;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private PeerWire() {
+	}
+
+	/**
+	 * Restituisce il messaggio {@link #HANDSHAKE} con la versione <param>version</param> per il
+	 * file <param>fileName</param>, pronto per essere letto.
+	 * 
+	 * @param version
+	 *            la versione del protocollo
+	 * @param fileName
+	 *            il nome del file
+	 * @return il messaggio pronto per essere letto
+	 * @throws IllegalArgumentException
+	 *             se il nome del file e' troppo lungo
+	 */
+	static ByteBuffer handshake(int version, String fileName) throws IllegalArgumentException {
+		byte[] name = fileName.getBytes(UTF8);
+		if (HEADER_LENGTH + 8 + name.length > MAX_CONTROL_LENGTH)
+			throw new IllegalArgumentException(" file name too long ");
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 8 + name.length);
+		buffer.putInt(9 + name.length).put(HANDSHAKE).putInt(MAGIC).putInt(version).put(name);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Restituisce il messaggio {@link #BITFIELD} con l'insieme dei pezzi <param>owned</param>,
+	 * pronto per essere letto.
+	 * 
+	 * @param owned
+	 *            l'insieme dei pezzi posseduti oppure <code>null</code> se non si possiede il file
+	 * @return il messaggio pronto per essere letto
+	 */
+	static ByteBuffer bitfield(PieceBitfield owned) {
+		byte[] bitfield = owned == null ? new byte[0] : owned.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bitfield.length);
+		buffer.putInt(1 + bitfield.length).put(BITFIELD).put(bitfield).flip();
+		return buffer;
+	}
+
+	/**
+	 * Restituisce il messaggio senza contenuto di tipo <param>type</param>, pronto per essere
+	 * letto.
+	 * 
+	 * @param type
+	 *            il tipo del messaggio: {@link #CHOKE} o {@link #UNCHOKE}
+	 * @return il messaggio pronto per essere letto
+	 */
+	static ByteBuffer emptyMessage(byte type) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.putInt(1).put(type).flip();
+		return buffer;
+	}
+
+	/**
+	 * Scrive in <param>buffer</param> il messaggio di tipo <param>type</param> che contiene solo
+	 * l'intero <param>value</param>.
+	 * 
+	 * @param buffer
+	 *            il buffer in cui scrivere il messaggio
+	 * @param type
+	 *            il tipo del messaggio: {@link #REQUEST}, {@link #REJECT}, {@link #CANCEL},
+	 *            {@link #PORT} o {@link #HAVE}
+	 * @param value
+	 *            l'indice del pezzo oppure la porta
+	 */
+	static void putIntMessage(ByteBuffer buffer, byte type, int value) {
+		buffer.putInt(5).put(type).putInt(value);
+	}
+
+	/**
+	 * Scrive in <param>buffer</param> l'intestazione del messaggio {@link #PIECE} del pezzo di
+	 * indice <param>index</param> e lunghezza <param>length</param>; i byte del pezzo seguono
+	 * l'intestazione.
+	 * 
+	 * @param buffer
+	 *            il buffer in cui scrivere l'intestazione
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param length
+	 *            la lunghezza del pezzo
+	 */
+	static void putPieceHeader(ByteBuffer buffer, int index, int length) {
+		buffer.putInt(5 + length).put(PIECE).putInt(index);
+	}
+
+	/**
+	 * Restituisce il messaggio {@link #PEX} con i peer <param>added</param> e
+	 * <param>dropped</param>, pronto per essere letto.
+	 * 
+	 * @param added
+	 *            i peer connessi dall'ultimo messaggio, al piu' 65535
+	 * @param dropped
+	 *            i peer non piu' connessi dall'ultimo messaggio, al piu' 65535
+	 * @return il messaggio pronto per essere letto
+	 */
+	static ByteBuffer pex(Collection<Peer> added, Collection<Peer> dropped) {
+		int length = 4;
+		for (Peer peer : added)
+			length += 3 + peer.getAddress().getAddress().length;
+		for (Peer peer : dropped)
+			length += 3 + peer.getAddress().getAddress().length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+		buffer.putInt(1 + length).put(PEX);
+		putPeers(buffer, added);
+		putPeers(buffer, dropped);
+		buffer.flip();
+		return buffer;
+	}
+
+	/** scrive in <param>buffer</param> il numero dei peer <param>peers</param> e i peer */
+	private static void putPeers(ByteBuffer buffer, Collection<Peer> peers) {
+		buffer.putShort((short) peers.size());
+		for (Peer peer : peers) {
+			byte[] address = peer.getAddress().getAddress();
+			buffer.put((byte) address.length).put(address).putShort((short) peer.getPort());
+		}
+	}
+
+	/**
+	 * Legge il contenuto di un messaggio {@link #PEX} e aggiunge i peer nuovi ad
+	 * <param>added</param> e quelli non piu' connessi a <param>dropped</param>.
+	 * 
+	 * @param buffer
+	 *            il contenuto del messaggio, che viene consumato
+	 * @param added
+	 *            la collezione a cui aggiungere i peer nuovi
+	 * @param dropped
+	 *            la collezione a cui aggiungere i peer non piu' connessi
+	 * @throws ProtocolException
+	 *             se il messaggio non e' valido
+	 */
+	static void readPex(ByteBuffer buffer, Collection<Peer> added, Collection<Peer> dropped)
+			throws ProtocolException {
+		readPeers(buffer, added);
+		readPeers(buffer, dropped);
+		if (buffer.hasRemaining())
+			throw new ProtocolException(" invalid peer exchange ");
+	}
+
+	/** legge da <param>buffer</param> un elenco di peer e li aggiunge a <param>peers</param> */
+	private static void readPeers(ByteBuffer buffer, Collection<Peer> peers)
+			throws ProtocolException {
+		if (buffer.remaining() < 2)
+			throw new ProtocolException(" invalid peer exchange ");
+		for (int count = buffer.getShort() & 0xffff; count > 0; count--) {
+			int length = buffer.hasRemaining() ? buffer.get() : 0;
+			if ((length != 4 && length != 16) || buffer.remaining() < length + 2)
+				throw new ProtocolException(" invalid peer exchange ");
+			byte[] address = new byte[length];
+			buffer.get(address);
+			int port = buffer.getShort() & 0xffff;
+			if (port == 0)
+				throw new ProtocolException(" invalid port " + port);
+			try {
+				peers.add(new Peer(InetAddress.getByAddress(address), port));
+			} catch (UnknownHostException e) {
+				throw new ProtocolException(" invalid address ");
+			}
+		}
+	}
+
+	/**
+	 * Legge il contenuto di un messaggio {@link #HANDSHAKE} e restituisce la versione e il nome
+	 * del file.
+	 * 
+	 * @param buffer
+	 *            il contenuto del messaggio, che viene consumato
+	 * @param fileName
+	 *            un array di un elemento in cui viene messo il nome del file
+	 * @return la versione del protocollo
+	 * @throws ProtocolException
+	 *             se il messaggio non e' un handshake valido
+	 */
+	static int readHandshake(ByteBuffer buffer, String[] fileName) throws ProtocolException {
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+			throw new ProtocolException(" not a bitCreek peer ");
+		int version = buffer.getInt();
+		if (version < 1)
+			throw new ProtocolException(" unsupported protocol version " + version);
+		byte[] name = new byte[buffer.remaining()];
+		buffer.get(name);
+		fileName[0] = new String(name, UTF8);
+		return version;
+	}
+
+	/**
+	 * Legge da <param>channel</param> in modalita' bloccante finche' <param>buffer</param> non
+	 * e' pieno.
+	 * 
+	 * @param channel
+	 *            il canale da cui leggere
+	 * @param buffer
+	 *            il buffer da riempire
+	 * @throws IOException
+	 *             se il canale viene chiuso prima che il buffer sia pieno
+	 */
+	static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException(" connection closed by peer ");
+	}
+
+	/**
+	 * Scrive su <param>channel</param> in modalita' bloccante tutti i byte di
+	 * <param>buffer</param>.
+	 * 
+	 * @param channel
+	 *            il canale su cui scrivere
+	 * @param buffer
+	 *            i byte da scrivere
+	 * @throws IOException
+	 */
+	static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -0,0 +1,191 @@
+package bitCreekPeer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Una cache di dimensione limitata dei pezzi di file piu' richiesti dagli altri peer. I pezzi
+ * sono memorizzati fuori dallo heap in buffer diretti e sono identificati dalla coppia nome del
+ * file, indice del pezzo.
+ * <p>
+ * Quando la cache e' piena viene eliminato il pezzo usato meno di recente. Un pezzo viene inserito
+ * nella cache solo quando viene richiesto per la seconda volta in poco tempo: in questo modo un
+ * pezzo richiesto una volta sola, ad esempio durante lo scaricamento completo di un file da parte
+ * di un solo peer, non prende il posto dei pezzi richiesti da molti peer.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PieceCache {
+
+	/** il numero massimo di byte memorizzati nella cache */
+	private final long capacity;
+
+	/** il numero di byte memorizzati nella cache */
+	private long size;
+
+	/** i pezzi memorizzati nella cache in ordine di uso */
+	private final LinkedHashMap<PieceKey, ByteBuffer> pieces;
+
+	/** i pezzi non presenti nella cache richiesti di recente */
+	private final LinkedHashMap<PieceKey, Boolean> recentMisses;
+
+	/** numero di richieste trovate nella cache */
+	private long hits;
+
+	/** numero di richieste non trovate nella cache */
+	private long misses;
+
+	/** numero di pezzi eliminati dalla cache per fare posto ad altri */
+	private long evictions;
+
+	/**
+	 * Crea una nuova cache che puo' contenere al piu' <param>capacity</param> byte di pezzi di
+	 * lunghezza <param>pieceLength</param>.
+	 * 
+	 * @param capacity
+	 *            il numero massimo di byte da memorizzare
+	 * @param pieceLength
+	 *            la lunghezza tipica dei pezzi
+	 */
+	PieceCache(long capacity, int pieceLength) {
+		this.capacity = capacity;
+		this.pieces = new LinkedHashMap<PieceKey, ByteBuffer>(16, 0.75f, true);
+		final int maxRecentMisses = (int) Math.max(16, capacity / pieceLength);
+		this.recentMisses = new LinkedHashMap<PieceKey, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = -1405470924817396331L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PieceKey, Boolean> eldest) {
+				return size() > maxRecentMisses;
+			}
+		};
+	}
+
+	/**
+	 * Restituisce una vista in sola lettura del pezzo di indice <param>index</param> del file
+	 * <param>fileName</param> se e' presente nella cache; altrimenti restituisce
+	 * <code>null</code>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @return il pezzo se e' presente nella cache; altrimenti <code>null</code>.
+	 */
+	synchronized ByteBuffer get(String fileName, int index) {
+		ByteBuffer piece = pieces.get(new PieceKey(fileName, index));
+		if (piece == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return piece.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Registra che il pezzo di indice <param>index</param> del file <param>fileName</param>,
+	 * non presente nella cache, e' stato richiesto.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @return <code>true</code> se il pezzo era gia' stato richiesto di recente e quindi deve
+	 *         essere inserito nella cache; altrimenti <code>false</code>.
+	 */
+	synchronized boolean shouldAdmit(String fileName, int index) {
+		return recentMisses.put(new PieceKey(fileName, index), Boolean.TRUE) != null;
+	}
+
+	/**
+	 * Inserisce nella cache i byte rimanenti di <param>piece</param> come pezzo di indice
+	 * <param>index</param> del file <param>fileName</param>, eliminando i pezzi usati meno di
+	 * recente se necessario. Se <param>piece</param> e' un buffer diretto viene memorizzato senza
+	 * copiarlo e non deve piu' essere modificato; altrimenti ne viene memorizzata una copia in un
+	 * buffer diretto.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param piece
+	 *            il contenuto del pezzo
+	 * @return una vista in sola lettura del pezzo inserito
+	 */
+	synchronized ByteBuffer put(String fileName, int index, ByteBuffer piece) {
+		int length = piece.remaining();
+		if (length > capacity)
+			return piece.asReadOnlyBuffer();
+		PieceKey key = new PieceKey(fileName, index);
+		ByteBuffer old = pieces.remove(key);
+		if (old != null)
+			size -= old.capacity();
+		Iterator<ByteBuffer> eldest = pieces.values().iterator();
+		while (size + length > capacity) {
+			size -= eldest.next().capacity();
+			eldest.remove();
+			evictions++;
+		}
+		ByteBuffer copy = piece.slice();
+		if (!copy.isDirect()) {
+			copy = ByteBuffer.allocateDirect(length);
+			copy.put(piece.duplicate()).flip();
+		}
+		pieces.put(key, copy);
+		recentMisses.remove(key);
+		size += length;
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Elimina dalla cache il pezzo di indice <param>index</param> del file
+	 * <param>fileName</param> se presente.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	synchronized void remove(String fileName, int index) {
+		ByteBuffer old = pieces.remove(new PieceKey(fileName, index));
+		if (old != null)
+			size -= old.capacity();
+	}
+
+	/**
+	 * Restituisce il numero di richieste trovate nella cache.
+	 * 
+	 * @return il numero di richieste trovate nella cache.
+	 */
+	synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Restituisce il numero di richieste non trovate nella cache.
+	 * 
+	 * @return il numero di richieste non trovate nella cache.
+	 */
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Restituisce il numero di pezzi eliminati dalla cache per fare posto ad altri.
+	 * 
+	 * @return il numero di pezzi eliminati dalla cache per fare posto ad altri.
+	 */
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	synchronized public String toString() {
+		return PieceCache.class.getCanonicalName() + "[pieces=" + pieces.size() + ", bytes="
+				+ size + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + "]";
+	}
+}
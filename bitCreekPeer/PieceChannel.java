@@ -0,0 +1,145 @@
+package bitCreekPeer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import bitCreekCommon.TorrentFile;
+
+/**
+ * Una vista in sola lettura del contenuto di un file che puo' essere ancora in corso di
+ * scaricamento. Una lettura restituisce subito i byte dei pezzi posseduti e si blocca solo se il
+ * pezzo che contiene la posizione corrente non e' ancora stato scaricato, finche' non diventa
+ * posseduto oppure il canale non viene chiuso da un altro thread.
+ * <p>
+ * La posizione corrente del canale viene comunicata al {@link FileManager} ad ogni lettura e ad
+ * ogni spostamento, cosi' che uno scaricamento sequenziale possa scaricare per primi i pezzi che
+ * seguono la posizione (vedi {@link PiecesChooser}).
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PieceChannel implements SeekableByteChannel {
+
+	/** il gestore dei file */
+	private final FileManager fileManager;
+
+	/** il descrittore del file */
+	private final TorrentFile torrent;
+
+	/** la posizione corrente */
+	private long position;
+
+	/** <code>true</code> se il canale e' aperto */
+	private volatile boolean open;
+
+	/**
+	 * Crea un nuovo canale posizionato all'inizio del file descritto da <param>torrent</param>.
+	 * 
+	 * @param fileManager
+	 *            il gestore dei file
+	 * @param torrent
+	 *            il descrittore del file
+	 */
+	PieceChannel(FileManager fileManager, TorrentFile torrent) {
+		this.fileManager = fileManager;
+		this.torrent = torrent;
+		this.open = true;
+		fileManager.streamMoved(torrent.fileName, 0);
+	}
+
+	/**
+	 * Legge i byte del pezzo che contiene la posizione corrente. L'attesa del pezzo avviene fuori
+	 * dal monitor del canale, cosi' che durante l'attesa gli altri thread possano spostare,
+	 * chiudere o interrogare il canale: la posizione viene letta prima dell'attesa e, se nel
+	 * frattempo e' cambiata o il pezzo non e' piu' posseduto, la lettura ricomincia.
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		while (true) {
+			long start;
+			synchronized (this) {
+				if (!open)
+					throw new ClosedChannelException();
+				if (position >= torrent.fileLength)
+					return -1;
+				if (!dst.hasRemaining())
+					return 0;
+				start = position;
+			}
+			int index = (int) (start / torrent.pieceLength);
+			try {
+				if (!fileManager.awaitPiece(torrent.fileName, index, this))
+					throw new ClosedChannelException();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new ClosedByInterruptException();
+			}
+			synchronized (this) {
+				if (!open)
+					throw new ClosedChannelException();
+				if (position != start)
+					continue;
+				long pieceEnd = Math.min((long) (index + 1) * torrent.pieceLength,
+						torrent.fileLength);
+				int count = (int) Math.min(dst.remaining(), pieceEnd - position);
+				ByteBuffer slice = dst.duplicate();
+				slice.limit(slice.position() + count);
+				if (!fileManager.readOwned(torrent.fileName, index, position, slice))
+					continue;
+				dst.position(dst.position() + count);
+				position += count;
+				fileManager.streamMoved(torrent.fileName, position);
+				return count;
+			}
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public synchronized long position() throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		return position;
+	}
+
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		if (newPosition < 0)
+			throw new IllegalArgumentException(" negative position " + newPosition);
+		if (!open)
+			throw new ClosedChannelException();
+		position = newPosition;
+		fileManager.streamMoved(torrent.fileName, Math.min(position, torrent.fileLength));
+		return this;
+	}
+
+	public long size() throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		return torrent.fileLength;
+	}
+
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Chiude il canale; una lettura bloccata in attesa di un pezzo termina con
+	 * {@link ClosedChannelException}.
+	 */
+	public void close() {
+		if (!open)
+			return;
+		open = false;
+		fileManager.streamClosed(torrent.fileName);
+	}
+}
@@ -0,0 +1,44 @@
+package bitCreekPeer;
+
+/**
+ * Identifica un pezzo di un file con la coppia nome del file, indice del pezzo. Viene usata come
+ * chiave dalla {@link PieceCache} e dal {@link PieceScrubber}.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+final class PieceKey {
+
+	/** il nome del file */
+	final String fileName;
+
+	/** l'indice del pezzo */
+	final int index;
+
+	/**
+	 * Crea una nuova chiave per il pezzo di indice <param>index</param> del file
+	 * <param>fileName</param>.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	PieceKey(String fileName, int index) {
+		this.fileName = fileName;
+		this.index = index;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PieceKey))
+			return false;
+		PieceKey other = (PieceKey) o;
+		return other.index == this.index && other.fileName.equals(this.fileName);
+	}
+
+	@Override
+	public int hashCode() {
+		return fileName.hashCode() * 31 + index;
+	}
+}
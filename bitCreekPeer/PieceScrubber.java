@@ -0,0 +1,217 @@
+package bitCreekPeer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import bitCreekCommon.PieceBitfield;
+import bitCreekCommon.TorrentFile;
+
+/**
+ * Ricontrolla in sottofondo i pezzi posseduti con gli hash dei descrittori dei file, cosi' che un
+ * pezzo rovinato su disco non venga inviato ad altri peer (vedi
+ * {@link FileManager#scrubPiece(TorrentFile, int, byte[])}). I pezzi rovinati smettono di essere
+ * posseduti e vengono scaricati di nuovo.
+ * <p>
+ * Il controllo procede a passate: in ogni passata vengono ricontrollati una volta tutti i pezzi
+ * posseduti dei file di cui e' noto il descrittore e una nuova passata inizia
+ * {@link #sweepPeriod} millisecondi dopo l'inizio della precedente. Prima dei pezzi della passata
+ * vengono ricontrollati i pezzi richiesti di recente dagli altri peer, che sono quelli che con
+ * piu' probabilita' verranno inviati di nuovo, se non sono gia' stati ricontrollati nella passata
+ * in corso.
+ * <p>
+ * Il ritmo di lettura, e quindi anche il tempo di calcolo degli hash, e' limitato a
+ * <code>bitCreek.scrubRate</code> byte al secondo (per default 1M byte al secondo, 0 disabilita
+ * il controllo) e il thread ha la priorita' minima. La distanza tra l'inizio di due passate si
+ * sceglie in secondi con la proprieta' di sistema <code>bitCreek.scrubPeriod</code> (per default
+ * un'ora).
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PieceScrubber extends Thread {
+
+	/** il numero massimo di pezzi richiesti in attesa di essere ricontrollati */
+	private static final int MAX_REQUESTED = 1024;
+
+	/** il gestore dei file di cui ricontrollare i pezzi */
+	private final FileManager fileManager;
+
+	/** il numero massimo di byte letti al secondo */
+	private final long bytesPerSecond;
+
+	/** la distanza in millisecondi tra l'inizio di due passate */
+	private final long sweepPeriod;
+
+	/** i pezzi richiesti di recente in ordine di richiesta; protetto dal monitor del thread */
+	private final LinkedHashSet<PieceKey> requested;
+
+	/** per ogni file i pezzi gia' ricontrollati nella passata in corso */
+	private final Map<String, PieceBitfield> checkedMap;
+
+	/** il buffer in cui leggere i pezzi */
+	private byte[] buffer;
+
+	/** l'istante, in nanosecondi, prima del quale non si possono leggere altri byte */
+	private long nextRead;
+
+	/** <code>true</code> se il controllo deve terminare */
+	private volatile boolean closed;
+
+	/**
+	 * Crea un nuovo controllore dei pezzi posseduti da <param>fileManager</param>.
+	 * 
+	 * @param fileManager
+	 *            il gestore dei file di cui ricontrollare i pezzi
+	 */
+	PieceScrubber(FileManager fileManager) {
+		super("piece scrubber");
+		this.fileManager = fileManager;
+		this.bytesPerSecond = Long.getLong("bitCreek.scrubRate", 1 << 20);
+		this.sweepPeriod = Long.getLong("bitCreek.scrubPeriod", 3600) * 1000;
+		this.requested = new LinkedHashSet<PieceKey>();
+		this.checkedMap = new HashMap<String, PieceBitfield>();
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Restituisce <code>true</code> se il controllo e' abilitato, cioe' se il ritmo di lettura
+	 * scelto e' positivo.
+	 * 
+	 * @return <code>true</code> se il controllo e' abilitato; altrimenti <code>false</code>.
+	 */
+	boolean isEnabled() {
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * Segnala che il pezzo di indice <param>index</param> del file <param>fileName</param> e'
+	 * stato richiesto da un altro peer: il pezzo verra' ricontrollato prima degli altri. Se ci
+	 * sono gia' troppi pezzi in attesa viene dimenticato il piu' vecchio.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	synchronized void pieceRequested(String fileName, int index) {
+		if (!isEnabled())
+			return;
+		if (requested.size() >= MAX_REQUESTED)
+			requested.remove(requested.iterator().next());
+		requested.add(new PieceKey(fileName, index));
+		notifyAll();
+	}
+
+	/**
+	 * Termina il controllo e attende che il thread sia terminato. Il thread non viene interrotto
+	 * perche' l'interruzione durante un'operazione su un <code>FileChannel</code> chiude il
+	 * canale.
+	 */
+	void close() {
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		if (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		nextRead = System.nanoTime();
+		while (!closed) {
+			long sweepStart = System.currentTimeMillis();
+			checkedMap.clear();
+			for (TorrentFile torrent : fileManager.getScrubbableTorrents()) {
+				for (int index = 0; index < torrent.getPiecesNumber() && !closed; index++) {
+					checkRequested();
+					check(torrent, index);
+				}
+			}
+			long sweepEnd;
+			while (!closed && (sweepEnd = sweepStart + sweepPeriod) > System.currentTimeMillis()) {
+				if (!checkRequested()) {
+					synchronized (this) {
+						if (!closed && requested.isEmpty()) {
+							try {
+								wait(Math.max(1, sweepEnd - System.currentTimeMillis()));
+							} catch (InterruptedException e) {
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * ricontrolla i pezzi richiesti di recente; restituisce <code>true</code> se c'era almeno un
+	 * pezzo richiesto
+	 */
+	private boolean checkRequested() {
+		boolean any = false;
+		PieceKey key;
+		while (!closed && (key = nextRequested()) != null) {
+			any = true;
+			TorrentFile torrent;
+			if ((torrent = fileManager.getTorrent(key.fileName)) != null && key.index >= 0
+					&& key.index < torrent.getPiecesNumber())
+				check(torrent, key.index);
+		}
+		return any;
+	}
+
+	/** preleva il pezzo richiesto meno recente oppure <code>null</code> */
+	synchronized private PieceKey nextRequested() {
+		if (requested.isEmpty())
+			return null;
+		PieceKey key = requested.iterator().next();
+		requested.remove(key);
+		return key;
+	}
+
+	/**
+	 * ricontrolla il pezzo di indice <param>index</param> se non e' gia' stato ricontrollato
+	 * nella passata in corso, rispettando il ritmo di lettura
+	 */
+	private void check(TorrentFile torrent, int index) {
+		PieceBitfield checked;
+		if ((checked = checkedMap.get(torrent.fileName)) == null
+				|| checked.size() != torrent.getPiecesNumber()) {
+			checked = new PieceBitfield(torrent.getPiecesNumber());
+			checkedMap.put(torrent.fileName, checked);
+		}
+		if (checked.has(index))
+			return;
+		checked.set(index);
+		if (buffer == null || buffer.length < torrent.pieceLength)
+			buffer = new byte[torrent.pieceLength];
+		throttle(fileManager.scrubPiece(torrent, index, buffer));
+	}
+
+	/**
+	 * attende abbastanza da non superare il ritmo di lettura dopo aver letto
+	 * <param>bytes</param> byte
+	 */
+	private void throttle(long bytes) {
+		long now = System.nanoTime();
+		// non si accumula credito per piu' di un secondo di inattivita'
+		nextRead = Math.max(nextRead, now - 1000000000L) + bytes * 1000000000L / bytesPerSecond;
+		long millis;
+		while (!closed && (millis = (nextRead - System.nanoTime()) / 1000000) > 0) {
+			synchronized (this) {
+				try {
+					wait(millis);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+}
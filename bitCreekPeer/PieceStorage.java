@@ -0,0 +1,261 @@
+package bitCreekPeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Il file di appoggio di uno e un solo torrent. Il file viene creato con la lunghezza finale del
+ * file descritto dal torrent (senza scrivere i byte, quindi come file sparso) e i pezzi vengono
+ * scritti direttamente alla loro posizione con scritture posizionali sul canale del file, che non
+ * ne spostano la posizione corrente e quindi possono procedere in parallelo, e letti attraverso
+ * delle regioni del file mappate in memoria.
+ * <p>
+ * Il file viene mappato a regioni di {@link #REGION_SIZE} byte create solo al primo accesso, in
+ * questo modo anche file piu' grandi di 2G byte possono essere mappati.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PieceStorage extends TorrentStorage {
+
+	/** dimensione di una regione del file mappata in memoria */
+	private static final long REGION_SIZE = 1 << 26;
+
+	/** il file di appoggio */
+	private File file;
+
+	/** il file aperto */
+	private final RandomAccessFile randomAccessFile;
+
+	/** il canale del file */
+	private final FileChannel channel;
+
+	/** la lunghezza del file */
+	private final long length;
+
+	/** <code>true</code> se il file e' aperto in sola lettura */
+	private final boolean readOnly;
+
+	/** le regioni del file gia' mappate in memoria */
+	private final MappedByteBuffer[] regions;
+
+	/**
+	 * Apre il file di appoggio <param>file</param>. Se il file e' aperto in scrittura e ha una
+	 * lunghezza diversa da <param>length</param> allora viene portato a tale lunghezza.
+	 * 
+	 * @param file
+	 *            il file di appoggio
+	 * @param length
+	 *            la lunghezza del file descritto dal torrent
+	 * @param readOnly
+	 *            <code>true</code> se il file deve essere aperto in sola lettura
+	 * @throws IOException
+	 *             se non e' possibile aprire il file
+	 */
+	PieceStorage(File file, long length, boolean readOnly) throws IOException {
+		if (length < 0)
+			throw new IllegalArgumentException(" negative length ");
+		this.file = file;
+		this.length = length;
+		this.readOnly = readOnly;
+		this.randomAccessFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+		this.channel = randomAccessFile.getChannel();
+		if (!readOnly && randomAccessFile.length() != length)
+			randomAccessFile.setLength(length);
+		this.regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+	}
+
+	/**
+	 * Restituisce la regione di indice <param>index</param> mappandola in memoria se necessario.
+	 * 
+	 * @param index
+	 *            l'indice della regione
+	 * @return la regione di indice <param>index</param>
+	 * @throws IOException
+	 */
+	synchronized private MappedByteBuffer region(int index) throws IOException {
+		if (regions[index] == null) {
+			long position = index * REGION_SIZE;
+			long size = Math.min(REGION_SIZE, length - position);
+			regions[index] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY
+					: FileChannel.MapMode.READ_WRITE, position, size);
+		}
+		return regions[index];
+	}
+
+	/**
+	 * Scrive di seguito i byte rimanenti dei buffer <param>srcs</param> a partire dalla posizione
+	 * <param>offset</param> del file con delle scritture posizionali.
+	 * 
+	 * @param offset
+	 *            la posizione nel file del primo byte da scrivere
+	 * @param srcs
+	 *            i byte da scrivere
+	 * @throws IOException
+	 */
+	@Override
+	void write(long offset, ByteBuffer[] srcs) throws IOException {
+		if (readOnly)
+			throw new IllegalStateException(" storage " + file + " is read only ");
+		long count = 0;
+		for (ByteBuffer src : srcs)
+			count += src.remaining();
+		if (offset < 0 || offset + count > length)
+			throw new IllegalArgumentException(" write out of bounds: offset=" + offset
+					+ ", count=" + count + ", length=" + length);
+		for (ByteBuffer src : srcs) {
+			while (src.hasRemaining())
+				offset += channel.write(src, offset);
+		}
+	}
+
+	/**
+	 * Legge al piu' <param>count</param> byte a partire dalla posizione <param>offset</param>
+	 * del file e li copia in <param>dst</param>.
+	 * 
+	 * @param offset
+	 *            la posizione nel file del primo byte da leggere
+	 * @param dst
+	 *            il buffer in cui copiare i byte letti
+	 * @param count
+	 *            il numero massimo di byte da leggere
+	 * @return il numero di byte letti, minore di <param>count</param> solo se si raggiunge la
+	 *         fine del file
+	 * @throws IOException
+	 */
+	@Override
+	int read(long offset, byte[] dst, int count) throws IOException {
+		if (offset < 0 || offset > length)
+			throw new IllegalArgumentException(" read out of bounds: offset=" + offset
+					+ ", length=" + length);
+		count = (int) Math.min(count, length - offset);
+		int done = 0;
+		while (done < count) {
+			long position = offset + done;
+			ByteBuffer buffer = region((int) (position / REGION_SIZE)).duplicate();
+			buffer.position((int) (position % REGION_SIZE));
+			int n = Math.min(count - done, buffer.remaining());
+			buffer.get(dst, done, n);
+			done += n;
+		}
+		return count;
+	}
+
+	/**
+	 * Legge i byte a partire dalla posizione <param>offset</param> del file e li copia nei byte
+	 * rimanenti di <param>dst</param>.
+	 * 
+	 * @param offset
+	 *            la posizione nel file del primo byte da leggere
+	 * @param dst
+	 *            il buffer in cui copiare i byte letti
+	 * @throws IOException
+	 */
+	@Override
+	void read(long offset, ByteBuffer dst) throws IOException {
+		if (offset < 0 || offset + dst.remaining() > length)
+			throw new IllegalArgumentException(" read out of bounds: offset=" + offset
+					+ ", count=" + dst.remaining() + ", length=" + length);
+		while (dst.hasRemaining()) {
+			ByteBuffer buffer = region((int) (offset / REGION_SIZE)).duplicate();
+			buffer.position((int) (offset % REGION_SIZE));
+			if (buffer.remaining() > dst.remaining())
+				buffer.limit(buffer.position() + dst.remaining());
+			offset += buffer.remaining();
+			dst.put(buffer);
+		}
+	}
+
+	/**
+	 * Invia sul canale <param>target</param> al piu' <param>count</param> byte a partire dalla
+	 * posizione <param>offset</param> del file senza copiarli in memoria: il trasferimento viene
+	 * fatto con una sola chiamata a
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)} che, se il sistema operativo
+	 * lo permette, passa i byte direttamente dalla cache del disco al socket.
+	 * 
+	 * @param offset
+	 *            la posizione nel file del primo byte da inviare
+	 * @param count
+	 *            il numero massimo di byte da inviare
+	 * @param target
+	 *            il canale su cui inviare i byte
+	 * @return il numero di byte inviati
+	 * @throws IOException
+	 */
+	@Override
+	long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		if (offset < 0 || offset + count > length)
+			throw new IllegalArgumentException(" transfer out of bounds: offset=" + offset
+					+ ", count=" + count + ", length=" + length);
+		return channel.transferTo(offset, count, target);
+	}
+
+	/**
+	 * Forza la scrittura su disco di tutte le modifiche fatte al file.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	synchronized void force() throws IOException {
+		if (readOnly)
+			return;
+		for (MappedByteBuffer region : regions)
+			if (region != null)
+				region.force();
+		channel.force(true);
+	}
+
+	/**
+	 * Chiude il file. Le regioni gia' mappate in memoria non vengono piu' usate.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	synchronized void close() throws IOException {
+		for (int i = 0; i < regions.length; i++)
+			regions[i] = null;
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	/**
+	 * Sposta il file di appoggio in <param>destination</param>. Il file rimane aperto e puo'
+	 * continuare ad essere letto anche durante lo spostamento.
+	 * 
+	 * @param destination
+	 *            la nuova posizione del file
+	 * @throws IOException
+	 *             se non e' possibile spostare il file
+	 */
+	@Override
+	synchronized void moveTo(File destination) throws IOException {
+		if (!file.renameTo(destination))
+			throw new IOException(" unable to move " + file + " to " + destination);
+		file = destination;
+	}
+
+	/**
+	 * Restituisce il file di appoggio.
+	 * 
+	 * @return il file di appoggio.
+	 */
+	@Override
+	synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Restituisce la lunghezza del file.
+	 * 
+	 * @return la lunghezza del file.
+	 */
+	@Override
+	long getLength() {
+		return length;
+	}
+}
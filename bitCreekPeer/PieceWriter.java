@@ -0,0 +1,290 @@
+package bitCreekPeer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bitCreekCommon.TorrentFile;
+
+/**
+ * Scrive su disco in modo asincrono i pezzi scaricati e gia' verificati. I pezzi vengono messi in
+ * una coda di lunghezza limitata e un piccolo insieme di thread scrittori li preleva a gruppi: i
+ * pezzi adiacenti dello stesso file di appoggio vengono scritti insieme, in ordine di posizione,
+ * tenendo il lock in lettura sul file di appoggio (vedi
+ * {@link FileManager#lockStorage(TorrentFile)}) cosi' che il file non possa essere chiuso durante
+ * le scritture. Un pezzo diventa posseduto solo
+ * dopo che e' stato scritto secondo la politica di sincronizzazione scelta.
+ * <p>
+ * Il numero di thread scrittori e la politica di sincronizzazione possono essere scelti con le
+ * proprieta' di sistema <code>bitCreek.writerThreads</code> e <code>bitCreek.fsync</code>
+ * (<code>batch</code> oppure <code>never</code>, vedi {@link FsyncPolicy}).
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class PieceWriter {
+
+	/** quando i pezzi scritti vengono sincronizzati col disco */
+	enum FsyncPolicy {
+		/**
+		 * i file di appoggio vengono sincronizzati col disco dopo ogni gruppo di scritture e prima
+		 * che i pezzi scritti diventino posseduti
+		 */
+		BATCH,
+		/**
+		 * i file di appoggio vengono sincronizzati col disco solo quando il file e' completo o il
+		 * peer termina; i pezzi diventano posseduti appena scritti
+		 */
+		NEVER
+	}
+
+	/** un pezzo in attesa di essere scritto */
+	private static class PendingPiece {
+
+		final TorrentFile torrent;
+
+		final int index;
+
+		final long offset;
+
+		final ByteBuffer data;
+
+		PendingPiece(TorrentFile torrent, int index, ByteBuffer data) {
+			this.torrent = torrent;
+			this.index = index;
+			this.offset = (long) index * torrent.pieceLength;
+			this.data = data;
+		}
+	}
+
+	/** ordina i pezzi per posizione */
+	private static final Comparator<PendingPiece> BY_POSITION = new Comparator<PendingPiece>() {
+		public int compare(PendingPiece a, PendingPiece b) {
+			return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+		}
+	};
+
+	/** la lunghezza della coda dei pezzi da scrivere */
+	private static final int QUEUE_LENGTH = 256;
+
+	/** il numero massimo di pezzi prelevati insieme dalla coda */
+	private static final int MAX_BATCH = 64;
+
+	/** il gestore dei file a cui comunicare i pezzi scritti */
+	private final FileManager fileManager;
+
+	/** i pezzi da scrivere */
+	private final BlockingQueue<PendingPiece> queue;
+
+	/** per ogni file il numero di pezzi accodati ma non ancora posseduti */
+	private final Map<String, Integer> pendingMap;
+
+	/** la politica di sincronizzazione col disco */
+	private final FsyncPolicy fsyncPolicy;
+
+	/** i thread scrittori */
+	private final Thread[] writers;
+
+	/** <code>true</code> se non si accettano piu' pezzi */
+	private volatile boolean closed;
+
+	/**
+	 * il lock che rende atomici rispetto alla chiusura il controllo di {@link #closed} e
+	 * l'inserimento di un pezzo nella coda: chi accoda tiene il lock in lettura, la chiusura il
+	 * lock in scrittura
+	 */
+	private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Crea e avvia un nuovo scrittore di pezzi.
+	 * 
+	 * @param fileManager
+	 *            il gestore dei file a cui comunicare i pezzi scritti
+	 */
+	PieceWriter(FileManager fileManager) {
+		this.fileManager = fileManager;
+		this.queue = new ArrayBlockingQueue<PendingPiece>(QUEUE_LENGTH);
+		this.pendingMap = new HashMap<String, Integer>();
+		this.fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("bitCreek.fsync", "batch")
+				.toUpperCase());
+		this.writers = new Thread[Math.max(1, Integer.getInteger("bitCreek.writerThreads", 2))];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new Thread("piece writer " + i) {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			};
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
+	}
+
+	/**
+	 * Accoda la scrittura del pezzo di indice <param>index</param> del file descritto da
+	 * <param>torrent</param>. Se la coda e' piena attende che si liberi un posto. Il controllo
+	 * della chiusura e l'inserimento nella coda avvengono tenendo il lock in lettura
+	 * {@link #closeLock}, quindi un pezzo accodato viene sempre scritto prima che
+	 * {@link #close()} termini.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param piece
+	 *            il pezzo
+	 * @param length
+	 *            la lunghezza del pezzo
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto durante l'attesa
+	 */
+	void enqueue(TorrentFile torrent, int index, byte[] piece, int length)
+			throws InterruptedException {
+		closeLock.readLock().lock();
+		try {
+			if (closed)
+				throw new IllegalStateException(" piece writer closed ");
+			synchronized (this) {
+				Integer pending = pendingMap.get(torrent.fileName);
+				pendingMap.put(torrent.fileName, pending == null ? 1 : pending + 1);
+			}
+			try {
+				queue.put(new PendingPiece(torrent, index, ByteBuffer.wrap(piece, 0, length)));
+			} catch (InterruptedException e) {
+				pieceDone(torrent.fileName);
+				throw e;
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Attende che tutti i pezzi accodati del file <param>fileName</param> siano diventati
+	 * posseduti.
+	 * 
+	 * @param fileName
+	 *            il nome del file
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto durante l'attesa
+	 */
+	synchronized void awaitWrites(String fileName) throws InterruptedException {
+		while (pendingMap.containsKey(fileName))
+			wait();
+	}
+
+	/**
+	 * Non accetta piu' pezzi e attende che tutti i pezzi accodati siano stati scritti. Il flag
+	 * {@link #closed} viene impostato tenendo il lock in scrittura {@link #closeLock}, dopo che
+	 * tutti gli accodamenti in corso sono terminati.
+	 */
+	void close() {
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		for (Thread writer : writers) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * il ciclo di un thread scrittore. I thread scrittori non vengono mai interrotti perche'
+	 * l'interruzione di un thread durante un'operazione su un <code>FileChannel</code> chiude il
+	 * canale.
+	 */
+	private void writeLoop() {
+		ArrayList<PendingPiece> batch = new ArrayList<PendingPiece>(MAX_BATCH);
+		while (!closed || !queue.isEmpty()) {
+			PendingPiece first;
+			try {
+				if ((first = queue.poll(100, TimeUnit.MILLISECONDS)) == null)
+					continue;
+			} catch (InterruptedException e) {
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, MAX_BATCH - 1);
+			try {
+				write(batch);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Scrive un gruppo di pezzi unendo in una sola scrittura i pezzi adiacenti dello stesso file
+	 * di appoggio, sincronizza col disco i file scritti se richiesto dalla politica di
+	 * sincronizzazione e infine rende posseduti i pezzi scritti. Il lock in lettura su ogni file
+	 * di appoggio viene tenuto per tutte le scritture dei suoi pezzi.
+	 */
+	private void write(ArrayList<PendingPiece> batch) throws IOException {
+		HashMap<String, ArrayList<PendingPiece>> byFile;
+		byFile = new HashMap<String, ArrayList<PendingPiece>>();
+		for (PendingPiece piece : batch) {
+			ArrayList<PendingPiece> pieces;
+			if ((pieces = byFile.get(piece.torrent.fileName)) == null) {
+				pieces = new ArrayList<PendingPiece>();
+				byFile.put(piece.torrent.fileName, pieces);
+			}
+			pieces.add(piece);
+		}
+		for (ArrayList<PendingPiece> pieces : byFile.values()) {
+			Collections.sort(pieces, BY_POSITION);
+			TorrentFile torrent = pieces.get(0).torrent;
+			TorrentStorage storage = fileManager.lockStorage(torrent);
+			try {
+				int start = 0;
+				while (start < pieces.size()) {
+					int end = start + 1;
+					while (end < pieces.size()
+							&& pieces.get(end).offset == pieces.get(end - 1).offset
+									+ pieces.get(end - 1).data.remaining())
+						end++;
+					ByteBuffer[] run = new ByteBuffer[end - start];
+					for (int i = start; i < end; i++)
+						run[i - start] = pieces.get(i).data;
+					storage.write(pieces.get(start).offset, run);
+					start = end;
+				}
+				if (fsyncPolicy == FsyncPolicy.BATCH)
+					storage.force();
+			} finally {
+				fileManager.unlockStorage(torrent);
+			}
+		}
+		for (PendingPiece piece : batch)
+			fileManager.pieceWritten(piece.torrent, piece.index);
+		for (PendingPiece piece : batch)
+			pieceDone(piece.torrent.fileName);
+	}
+
+	/**
+	 * toglie un pezzo dai pezzi accodati ma non ancora posseduti del file <param>fileName</param>
+	 * e sveglia i thread in attesa in {@link #awaitWrites(String)}
+	 */
+	private synchronized void pieceDone(String fileName) {
+		int pending = pendingMap.get(fileName) - 1;
+		if (pending == 0)
+			pendingMap.remove(fileName);
+		else
+			pendingMap.put(fileName, pending);
+		notifyAll();
+	}
+}
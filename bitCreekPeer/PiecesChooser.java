@@ -3,81 +3,647 @@ package bitCreekPeer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import bitCreekCommon.Peer;
+import bitCreekCommon.PieceBitfield;
+import bitCreekCommon.TorrentFile;
 
 /**
  * Tiene traccia dei pezzi posseduti dagli altri peer per uno e un solo file e implementa una
  * politica di scelta di quali pezzi scaricare. Il peer non possiede nessuno di tali pezzi.
+ * <p>
+ * La politica e' quella del pezzo piu' raro: per ogni pezzo viene contato il numero di peer
+ * connessi che lo possiedono e a un peer viene chiesto, tra i pezzi utili che possiede, quello
+ * posseduto dal minor numero di peer, scelto a caso tra quelli ugualmente rari. Cosi' i pezzi
+ * rari vengono replicati per primi e peer diversi scaricano pezzi diversi, che poi possono
+ * scambiarsi. Ogni peer riceve un pezzo alla volta, quindi i pezzi riservati per un peer non sono
+ * mai piu' delle sue richieste in attesa di risposta (vedi {@link PiecesDownloader}).
+ * <p>
+ * I pezzi ancora da scaricare sono tenuti in un array ordinato per numero di peer che li
+ * possiedono e diviso in gruppi di pezzi ugualmente rari, aggiornato ad ogni insieme di pezzi
+ * ricevuto, annuncio e chiusura di una connessione con un numero di scambi pari al piu' al numero
+ * di gruppi; la scelta visita i gruppi dal piu' raro e si ferma al primo pezzo utile, senza
+ * scorrere tutti i pezzi del file. I pezzi che diventano posseduti o smettono di esserlo vengono
+ * comunicati dal {@link FileManager}, a cui l'oggetto si registra alla creazione fino a
+ * {@link #close()}.
+ * <p>
+ * Normalmente un pezzo viene richiesto a un solo peer alla volta. Quando mancano al piu'
+ * <code>bitCreek.endgamePieces</code> pezzi (per default {@link #DEFAULT_ENDGAME_PIECES}) e sono
+ * tutti gia' stati richiesti, il peer entra nella fase finale: a un peer che non ha piu' pezzi da
+ * offrire viene chiesto anche un pezzo gia' richiesto ad altri, scegliendo quello richiesto al
+ * minor numero di peer, cosi' che un peer lento non ritardi la fine dello scaricamento. Viene
+ * accettata la prima copia verificata di un pezzo e le richieste dello stesso pezzo fatte agli
+ * altri peer vengono cancellate (vedi {@link #pieceDownloaded(Peer, int, int)}); i byte ricevuti
+ * inutilmente vengono contati in {@link #getDuplicateBytes()}.
+ * <p>
+ * I pezzi posseduti da un peer vengono aggiornati con i suoi annunci (vedi
+ * {@link #pieceAvailable(Peer, int)}), quindi un peer che non possiede tutto il file puo' offrire
+ * nuovi pezzi finche' il peer non ha scaricato tutto (vedi {@link #mayOffer(Peer)}).
+ * <p>
+ * Nello scaricamento sequenziale, usato per leggere il file mentre viene scaricato (vedi
+ * {@link PieceChannel}), i pezzi della finestra di lettura anticipata, cioe' i pezzi che coprono
+ * i <code>bitCreek.readAheadBytes</code> byte (per default {@link #DEFAULT_READ_AHEAD_BYTES})
+ * che seguono la posizione dell'ultima lettura, vengono richiesti prima degli altri e in ordine;
+ * fuori dalla finestra si sceglie ancora il pezzo piu' raro, cosi' che il peer continui a
+ * scaricare pezzi utili agli altri peer. Senza letture in corso la finestra parte dall'inizio
+ * del file.
+ * <p>
+ * Se si vogliono solo alcuni intervalli di byte del file vengono scelti solo i pezzi che li
+ * coprono (vedi {@link #piecesCovering(TorrentFile, long[], long[])}) e lo scaricamento e'
+ * completo quando sono posseduti tutti questi pezzi.
  * 
  * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
  */
-class PiecesChooser {
+class PiecesChooser implements FileManager.PieceListener {
+
+	/** il numero di default di pezzi mancanti sotto il quale inizia la fase finale */
+	private static final int DEFAULT_ENDGAME_PIECES = 16;
+
+	/** il numero di pezzi mancanti sotto il quale inizia la fase finale */
+	private static final int ENDGAME_PIECES = Integer.getInteger("bitCreek.endgamePieces",
+			DEFAULT_ENDGAME_PIECES);
+
+	/** la lunghezza di default in byte della finestra di lettura anticipata */
+	private static final long DEFAULT_READ_AHEAD_BYTES = 1 << 24;
+
+	/** la lunghezza in byte della finestra di lettura anticipata */
+	private static final long READ_AHEAD_BYTES = Math.max(1, Long.getLong(
+			"bitCreek.readAheadBytes", DEFAULT_READ_AHEAD_BYTES));
 
 	/** memorizza i pezzi del file posseduti da alcuni degli altri peer nella rete */
-	private Map<Peer, ArrayList<Long>> peerOffsetMap;
+	private Map<Peer, PieceBitfield> peerPiecesMap;
+
+	/** per ogni peer i pezzi richiesti e non ancora arrivati */
+	private final Map<Peer, PieceBitfield> requestedMap;
 
-	/** pezzi che questo peer sta correntemente scaricando da qualche altro peer */
-	private ArrayList<Long> currentDownloading;
+	/** per ogni peer lo scaricatore che ne riceve i pezzi */
+	private final Map<Peer, PiecesDownloader> downloadersMap;
 
-	/** il nome del file */
-	private String fileName;
+	/** per ogni pezzo il numero di peer a cui e' stato richiesto e non ancora arrivato */
+	private final int[] requests;
+
+	/** i pezzi scaricati e verificati, anche se non ancora scritti su disco */
+	private final PieceBitfield downloaded;
+
+	/** il descrittore del file */
+	private TorrentFile torrent;
 
 	private final FileManager fileManager;
 
+	/** per ogni pezzo il numero di peer in {@link #peerPiecesMap} che lo possiedono */
+	private final int[] availability;
+
 	/**
+	 * i pezzi da scaricare, cioe' voluti, non posseduti e non ancora scaricati, nelle prime
+	 * {@link #candidates} posizioni, ordinati per {@link #availability} crescente
+	 */
+	private final int[] order;
+
+	/** per ogni pezzo la sua posizione in {@link #order} oppure -1 se non e' da scaricare */
+	private final int[] position;
+
+	/**
+	 * per ogni numero a di peer il numero di pezzi da scaricare posseduti da meno di a peer,
+	 * cioe' la posizione in {@link #order} del primo pezzo posseduto da a peer; l'ultimo elemento
+	 * supera sempre il massimo di {@link #availability} e vale {@link #candidates}
+	 */
+	private int[] groupStart;
+
+	/** il numero di pezzi da scaricare */
+	private int candidates;
+
+	/** il numero di pezzi da scaricare non richiesti a nessun peer */
+	private int unrequested;
+
+	/** sceglie tra i pezzi ugualmente rari */
+	private final Random random;
+
+	/** il numero di byte ricevuti inutilmente */
+	private long duplicateBytes;
+
+	/** <code>true</code> se lo scaricamento e' sequenziale */
+	private final boolean sequential;
+
+	/** i pezzi da scaricare oppure <code>null</code> se si vuole tutto il file */
+	private final PieceBitfield wanted;
 
+	/**
+	 * Crea un nuovo oggetto che sceglie i pezzi da scaricare del file descritto da
+	 * <param>torrent</param>.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param fileManager
+	 *            il gestore dei file
+	 */
+	PiecesChooser(TorrentFile torrent, FileManager fileManager) {
+		this(torrent, fileManager, false);
+	}
+
+	/**
+	 * Crea un nuovo oggetto che sceglie i pezzi da scaricare del file descritto da
+	 * <param>torrent</param>, in ordine a partire dalla posizione di lettura se
+	 * <param>sequential</param> e' <code>true</code>.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param fileManager
+	 *            il gestore dei file
+	 * @param sequential
+	 *            <code>true</code> se lo scaricamento e' sequenziale
+	 */
+	PiecesChooser(TorrentFile torrent, FileManager fileManager, boolean sequential) {
+		this(torrent, fileManager, sequential, null);
+	}
+
+	/**
+	 * Crea un nuovo oggetto che sceglie solo i pezzi <param>wanted</param> del file descritto da
+	 * <param>torrent</param>, in ordine a partire dalla posizione di lettura se
+	 * <param>sequential</param> e' <code>true</code>.
 	 * 
-	 * @param fileName
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param fileManager
+	 *            il gestore dei file
+	 * @param sequential
+	 *            <code>true</code> se lo scaricamento e' sequenziale
+	 * @param wanted
+	 *            i pezzi da scaricare oppure <code>null</code> se si vuole tutto il file
 	 */
-	PiecesChooser(String fileName, FileManager fileManager) {
-		this.fileName = fileName;
+	PiecesChooser(TorrentFile torrent, FileManager fileManager, boolean sequential,
+			PieceBitfield wanted) {
+		if (wanted != null && wanted.size() != torrent.getPiecesNumber())
+			throw new IllegalArgumentException(" wrong number of pieces ");
+		this.sequential = sequential;
+		this.wanted = wanted;
+		this.torrent = torrent;
 		this.fileManager = fileManager;
-		peerOffsetMap = new HashMap<Peer, ArrayList<Long>>();
-		this.currentDownloading = new ArrayList<Long>();
+		peerPiecesMap = new HashMap<Peer, PieceBitfield>();
+		this.requestedMap = new HashMap<Peer, PieceBitfield>();
+		this.downloadersMap = new HashMap<Peer, PiecesDownloader>();
+		this.requests = new int[torrent.getPiecesNumber()];
+		this.downloaded = new PieceBitfield(torrent.getPiecesNumber());
+		this.availability = new int[torrent.getPiecesNumber()];
+		this.random = new Random();
+		this.order = new int[torrent.getPiecesNumber()];
+		this.position = new int[torrent.getPiecesNumber()];
+		this.groupStart = new int[2];
+		/* i pezzi che cambiano dopo la registrazione vengono comunicati dopo il blocco */
+		synchronized (this) {
+			fileManager.addPieceListener(this);
+			PieceBitfield owned = fileManager.getOwnedPieces(torrent.fileName);
+			for (int index = 0; index < position.length; index++) {
+				position[index] = -1;
+				if (isWanted(index) && (owned == null || !owned.has(index)))
+					addCandidate(index);
+			}
+		}
 	}
 
 	/**
-	 * Sceglie quali pezzi il peer deve richiedere al peer <param>fromPeer</param>.
+	 * Sceglie il prossimo pezzo che il peer deve richiedere al peer <param>fromPeer</param> e lo
+	 * segna come richiesto, cosi' che non venga richiesto ad altri peer. Il pezzo scelto e' il
+	 * piu' raro tra quelli che <param>fromPeer</param> possiede e che il peer non possiede e non
+	 * ha richiesto; nella fase finale puo' essere anche un pezzo gia' richiesto ad altri peer.
 	 * 
 	 * @param fromPeer
-	 *            il peer al quale richiedere dei pezzi del file
-	 * @return la lista di pezzi da richiedere al peer <param>fromPeer</param>
+	 *            il peer al quale richiedere un pezzo del file
+	 * @return l'indice del pezzo da richiedere al peer <param>fromPeer</param> oppure -1 se il
+	 *         peer <param>fromPeer</param> non ha pezzi utili
 	 */
-	synchronized ArrayList<Long> choosePieces(Peer fromPeer) {
-		ArrayList<Long> available;
-		if ((available = peerOffsetMap.get(fromPeer)) == null)
+	synchronized int choosePiece(Peer fromPeer) {
+		PieceBitfield available;
+		if ((available = peerPiecesMap.get(fromPeer)) == null)
 			throw new IllegalArgumentException(" peer not found ");
-		
-		ArrayList<Long> ownedList;
-		if ((ownedList = fileManager.getPieceOffests(fileName)) != null) {
-			for (Long ownedOff : ownedList) {
-				available.remove(ownedOff);
+		PieceBitfield requested = requestedMap.get(fromPeer);
+		int choosed = sequential ? chooseReadAhead(available) : -1;
+		if (choosed < 0)
+			choosed = chooseRarest(available);
+		if (choosed < 0 && isEndgame())
+			choosed = chooseEndgame(available, requested);
+		if (choosed >= 0) {
+			addRequest(choosed);
+			requested.set(choosed);
+		}
+		return choosed;
+	}
+
+	/**
+	 * sceglie il piu' raro tra i pezzi da scaricare di <param>available</param> non richiesti a
+	 * nessuno, visitando i gruppi dal piu' raro e ogni gruppo a partire da una posizione a caso
+	 */
+	private int chooseRarest(PieceBitfield available) {
+		/* i pezzi posseduti da nessun peer non possono essere in available */
+		for (int a = 1; a < groupStart.length - 1; a++) {
+			int start = groupStart[a];
+			int size = groupStart[a + 1] - start;
+			if (size == 0)
+				continue;
+			int first = random.nextInt(size);
+			for (int i = 0; i < size; i++) {
+				int index = order[start + (first + i) % size];
+				if (requests[index] == 0 && available.has(index))
+					return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * sceglie tra i pezzi da scaricare di <param>available</param> non richiesti a questo peer
+	 * quello richiesto al minor numero di peer; i pezzi da scaricare sono al piu'
+	 * {@link #ENDGAME_PIECES}
+	 */
+	private int chooseEndgame(PieceBitfield available, PieceBitfield requested) {
+		int choosed = -1;
+		int best = Integer.MAX_VALUE;
+		int ties = 0;
+		for (int i = 0; i < candidates; i++) {
+			int index = order[i];
+			if (requested.has(index) || !available.has(index))
+				continue;
+			if (requests[index] < best) {
+				best = requests[index];
+				choosed = index;
+				ties = 1;
+			} else if (requests[index] == best && random.nextInt(++ties) == 0) {
+				/* ogni pezzo ugualmente buono viene scelto con la stessa probabilita' */
+				choosed = index;
+			}
+		}
+		return choosed;
+	}
+
+	/**
+	 * sceglie il primo dei pezzi da scaricare di <param>available</param> non richiesti a
+	 * nessuno nella finestra di lettura anticipata
+	 */
+	private int chooseReadAhead(PieceBitfield available) {
+		long position = Math.max(0, fileManager.getReadPosition(torrent.fileName));
+		int first = (int) (Math.min(position, torrent.fileLength) / torrent.pieceLength);
+		long last = (position + Math.min(READ_AHEAD_BYTES, torrent.fileLength) - 1)
+				/ torrent.pieceLength;
+		for (int index = available.nextSetBit(first); index >= 0 && index <= last; index = available
+				.nextSetBit(index + 1)) {
+			if (this.position[index] >= 0 && requests[index] == 0)
+				return index;
+		}
+		return -1;
+	}
+
+	/**
+	 * restituisce <code>true</code> se mancano al piu' {@link #ENDGAME_PIECES} pezzi, tutti gia'
+	 * richiesti
+	 */
+	private boolean isEndgame() {
+		return candidates > 0 && candidates <= ENDGAME_PIECES && unrequested == 0;
+	}
+
+	/** conta una richiesta in piu' del pezzo di indice <param>index</param> */
+	private void addRequest(int index) {
+		if (requests[index]++ == 0 && position[index] >= 0)
+			unrequested--;
+	}
+
+	/** conta una richiesta in meno del pezzo di indice <param>index</param> */
+	private void removeRequest(int index) {
+		if (--requests[index] == 0 && position[index] >= 0)
+			unrequested++;
+	}
+
+	/** conta un peer in piu' che possiede il pezzo di indice <param>index</param> */
+	private void increaseAvailability(int index) {
+		int a = availability[index]++;
+		if (position[index] < 0)
+			return;
+		ensureGroups(a + 3);
+		/* il pezzo diventa il primo del gruppo successivo */
+		swap(position[index], --groupStart[a + 1]);
+	}
+
+	/** conta un peer in meno che possiede il pezzo di indice <param>index</param> */
+	private void decreaseAvailability(int index) {
+		int a = availability[index]--;
+		if (position[index] < 0)
+			return;
+		/* il pezzo diventa l'ultimo del gruppo precedente */
+		swap(position[index], groupStart[a]++);
+	}
+
+	/** aggiunge il pezzo di indice <param>index</param> ai pezzi da scaricare */
+	private void addCandidate(int index) {
+		ensureGroups(availability[index] + 2);
+		order[candidates] = index;
+		position[index] = candidates++;
+		/* il pezzo parte dall'ultimo gruppo e scende fino al suo */
+		for (int a = groupStart.length - 1; a > availability[index]; a--)
+			swap(position[index], groupStart[a]++);
+		if (requests[index] == 0)
+			unrequested++;
+	}
+
+	/** toglie il pezzo di indice <param>index</param> dai pezzi da scaricare */
+	private void removeCandidate(int index) {
+		/* il pezzo sale fino all'ultimo gruppo, che termina con lui */
+		for (int a = availability[index] + 1; a < groupStart.length; a++)
+			swap(position[index], --groupStart[a]);
+		position[index] = -1;
+		candidates--;
+		if (requests[index] == 0)
+			unrequested--;
+	}
+
+	/** scambia i pezzi nelle posizioni <param>i</param> e <param>j</param> di {@link #order} */
+	private void swap(int i, int j) {
+		int a = order[i];
+		int b = order[j];
+		order[i] = b;
+		order[j] = a;
+		position[b] = i;
+		position[a] = j;
+	}
+
+	/** allunga {@link #groupStart} fino ad almeno <param>length</param> gruppi */
+	private void ensureGroups(int length) {
+		if (groupStart.length >= length)
+			return;
+		int[] longer = new int[Math.max(length, groupStart.length * 2)];
+		System.arraycopy(groupStart, 0, longer, 0, groupStart.length);
+		for (int a = groupStart.length; a < longer.length; a++)
+			longer[a] = candidates;
+		groupStart = longer;
+	}
+
+	/**
+	 * Comunica che il pezzo di indice <param>index</param>, scelto con
+	 * {@link #choosePiece(Peer)} per il peer <param>peer</param>, non e' stato scaricato e puo'
+	 * essere richiesto ad altri peer.
+	 * 
+	 * @param peer
+	 *            il peer a cui era stato richiesto il pezzo
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	synchronized void release(Peer peer, int index) {
+		PieceBitfield requested = requestedMap.get(peer);
+		if (requested != null && requested.has(index)) {
+			requested.clear(index);
+			removeRequest(index);
+		}
+	}
+
+	/**
+	 * Comunica che il pezzo di indice <param>index</param> e lunghezza <param>length</param>,
+	 * scelto con {@link #choosePiece(Peer)} per il peer <param>peer</param>, e' stato scaricato e
+	 * verificato. Se e' la prima copia del pezzo le richieste dello stesso pezzo fatte ad altri
+	 * peer non servono piu': vengono restituiti gli scaricatori che le devono cancellare.
+	 * 
+	 * @param peer
+	 *            il peer che ha inviato il pezzo
+	 * @param index
+	 *            l'indice del pezzo
+	 * @param length
+	 *            la lunghezza del pezzo
+	 * @return gli scaricatori che devono cancellare la richiesta del pezzo, eventualmente nessuno,
+	 *         oppure <code>null</code> se il pezzo era gia' stato scaricato e deve essere scartato
+	 */
+	synchronized ArrayList<PiecesDownloader> pieceDownloaded(Peer peer, int index, int length) {
+		release(peer, index);
+		if (downloaded.has(index)) {
+			duplicateBytes += length;
+			return null;
+		}
+		downloaded.set(index);
+		if (position[index] >= 0)
+			removeCandidate(index);
+		ArrayList<PiecesDownloader> cancel = new ArrayList<PiecesDownloader>();
+		if (requests[index] > 0) {
+			for (Map.Entry<Peer, PieceBitfield> entry : requestedMap.entrySet()) {
+				if (entry.getValue().has(index)) {
+					entry.getValue().clear(index);
+					removeRequest(index);
+					cancel.add(downloadersMap.get(entry.getKey()));
+				}
 			}
 		}
+		return cancel;
+	}
 
-		for (Long pieceInDownload : currentDownloading)
-			available.remove(pieceInDownload);
-		currentDownloading.addAll(available);
-		return available;
+	/**
+	 * Comunica che sono stati ricevuti inutilmente <param>length</param> byte di un pezzo, per
+	 * esempio perche' la sua richiesta era stata cancellata.
+	 * 
+	 * @param length
+	 *            il numero di byte
+	 */
+	synchronized void duplicate(int length) {
+		duplicateBytes += length;
+	}
+
+	/**
+	 * Restituisce il numero di byte ricevuti inutilmente, soprattutto nella fase finale.
+	 * 
+	 * @return il numero di byte ricevuti inutilmente.
+	 */
+	synchronized long getDuplicateBytes() {
+		return duplicateBytes;
+	}
+
+	/**
+	 * Comunica che il peer <param>peer</param> non possiede piu' il pezzo di indice
+	 * <param>index</param>, scelto con {@link #choosePiece(Peer)}: il pezzo puo' essere
+	 * richiesto ad altri peer.
+	 * 
+	 * @param peer
+	 *            il peer
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	synchronized void pieceUnavailable(Peer peer, int index) {
+		PieceBitfield available;
+		if ((available = peerPiecesMap.get(peer)) != null && available.has(index)) {
+			available.clear(index);
+			decreaseAvailability(index);
+		}
+		release(peer, index);
+	}
+
+	/**
+	 * Comunica che lo scaricatore <param>downloader</param> e' connesso al peer
+	 * {@link PiecesDownloader#getPeer()}, che possiede le parti <param>available</param>
+	 * 
+	 * @param downloader
+	 *            lo scaricatore connesso al peer che possiede le parti di file
+	 * @param available
+	 *            i pezzi resi disponibili dal peer
+	 */
+	synchronized void addAvailablePieces(PiecesDownloader downloader, PieceBitfield available) {
+		Peer peer = downloader.getPeer();
+		PieceBitfield current;
+		if ((current = peerPiecesMap.get(peer)) == null) {
+			current = new PieceBitfield(available.size());
+			peerPiecesMap.put(peer, current);
+			requestedMap.put(peer, new PieceBitfield(available.size()));
+			downloadersMap.put(peer, downloader);
+		}
+		for (int index = available.nextSetBit(0); index >= 0; index = available
+				.nextSetBit(index + 1)) {
+			if (!current.has(index)) {
+				current.set(index);
+				increaseAvailability(index);
+			}
+		}
+	}
+
+	/**
+	 * Comunica che il peer <param>peer</param> ha annunciato di possedere il pezzo di indice
+	 * <param>index</param>.
+	 * 
+	 * @param peer
+	 *            il peer
+	 * @param index
+	 *            l'indice del pezzo
+	 * @return <code>true</code> se il pezzo e' da scaricare
+	 * @throws IllegalArgumentException
+	 *             se l'indice non e' valido
+	 */
+	synchronized boolean pieceAvailable(Peer peer, int index) throws IllegalArgumentException {
+		if (index < 0 || index >= availability.length)
+			throw new IllegalArgumentException(" invalid piece index " + index);
+		PieceBitfield available;
+		if ((available = peerPiecesMap.get(peer)) == null)
+			return false;
+		if (!available.has(index)) {
+			available.set(index);
+			increaseAvailability(index);
+		}
+		return position[index] >= 0;
 	}
 
 	/**
-	 * Comunica che il peer <param>address</param> in ascolto sulla porta <param>port</param>
-	 * possiede le parti <param>availableList</param>
+	 * Restituisce <code>true</code> se il peer <param>peer</param> potra' offrire pezzi utili
+	 * anche quando non ne ha: se non possiede tutto il file e al peer mancano ancora dei pezzi.
 	 * 
 	 * @param peer
-	 *            il peer che possiede le parti di file
-	 * @param availableList
-	 *            la lista di pezzi resi disponibili dal peer
-	 */
-	synchronized void addAvailablePieces(Peer peer, ArrayList<Long> availableList) {
-		ArrayList<Long> current;
-		if ((current = peerOffsetMap.get(peer)) == null) {
-			peerOffsetMap.put(peer, availableList);
-		} else {
-			current.addAll(availableList);
+	 *            il peer
+	 * @return <code>true</code> se il peer <param>peer</param> potra' offrire pezzi utili
+	 */
+	synchronized boolean mayOffer(Peer peer) {
+		PieceBitfield available;
+		if ((available = peerPiecesMap.get(peer)) == null || available.isComplete())
+			return false;
+		return !isComplete();
+	}
+
+	/** restituisce <code>true</code> se tutti i pezzi da scaricare sono posseduti o scaricati */
+	private boolean isComplete() {
+		return candidates == 0;
+	}
+
+	/** restituisce <code>true</code> se il pezzo di indice <param>index</param> e' da scaricare */
+	private boolean isWanted(int index) {
+		return wanted == null || wanted.has(index);
+	}
+
+	/**
+	 * Restituisce l'insieme dei pezzi del file descritto da <param>torrent</param> che coprono
+	 * gli intervalli di byte che iniziano alle posizioni <param>offsets</param> e sono lunghi
+	 * <param>lengths</param>.
+	 * 
+	 * @param torrent
+	 *            il descrittore del file
+	 * @param offsets
+	 *            le posizioni dei primi byte degli intervalli
+	 * @param lengths
+	 *            le lunghezze degli intervalli
+	 * @return l'insieme dei pezzi che coprono gli intervalli
+	 * @throws IllegalArgumentException
+	 *             se un intervallo non e' contenuto nel file
+	 */
+	static PieceBitfield piecesCovering(TorrentFile torrent, long[] offsets, long[] lengths)
+			throws IllegalArgumentException {
+		if (offsets.length != lengths.length)
+			throw new IllegalArgumentException(" offsets and lengths differ in number ");
+		PieceBitfield covering = new PieceBitfield(torrent.getPiecesNumber());
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] > torrent.fileLength - lengths[i])
+				throw new IllegalArgumentException(" range " + offsets[i] + "+" + lengths[i]
+						+ " out of file " + torrent.fileName);
+			if (lengths[i] == 0)
+				continue;
+			int last = (int) ((offsets[i] + lengths[i] - 1) / torrent.pieceLength);
+			for (int index = (int) (offsets[i] / torrent.pieceLength); index <= last; index++)
+				covering.set(index);
+		}
+		return covering;
+	}
+
+	/**
+	 * Se tutti i pezzi sono posseduti o gia' scaricati chiude le connessioni di tutti gli
+	 * scaricatori, anche quelle che attendono nuovi pezzi o la fine di uno strozzamento.
+	 */
+	void closeIfComplete() {
+		ArrayList<PiecesDownloader> downloaders;
+		synchronized (this) {
+			if (!isComplete())
+				return;
+			downloaders = new ArrayList<PiecesDownloader>(downloadersMap.values());
 		}
+		/* senza il lock, che gli scaricatori acquisiscono con il proprio */
+		for (PiecesDownloader downloader : downloaders)
+			downloader.close();
+	}
+
+	/**
+	 * Comunica che la connessione con il peer <param>peer</param> e' stata chiusa: i suoi pezzi
+	 * non contano piu' nel calcolo della rarita' e i pezzi che gli erano stati richiesti possono
+	 * essere richiesti ad altri peer.
+	 * 
+	 * @param peer
+	 *            il peer
+	 */
+	synchronized void removePeer(Peer peer) {
+		PieceBitfield available;
+		if ((available = peerPiecesMap.remove(peer)) == null)
+			return;
+		for (int index = available.nextSetBit(0); index >= 0; index = available
+				.nextSetBit(index + 1))
+			decreaseAvailability(index);
+		PieceBitfield requested = requestedMap.remove(peer);
+		for (int index = requested.nextSetBit(0); index >= 0; index = requested
+				.nextSetBit(index + 1))
+			removeRequest(index);
+		downloadersMap.remove(peer);
+	}
+
+	/**
+	 * Comunica che il pezzo di indice <param>index</param> del file <param>fileName</param> e'
+	 * diventato posseduto: se e' un pezzo di questo file non e' piu' da scaricare.
+	 */
+	public synchronized void pieceAdded(String fileName, int index) {
+		if (fileName.equals(torrent.fileName) && position[index] >= 0)
+			removeCandidate(index);
+	}
+
+	/**
+	 * Comunica che il pezzo di indice <param>index</param> del file <param>fileName</param> non
+	 * e' piu' posseduto perche' rovinato: se e' un pezzo voluto di questo file deve essere
+	 * scaricato di nuovo.
+	 */
+	public synchronized void pieceRemoved(String fileName, int index) {
+		if (!fileName.equals(torrent.fileName) || position[index] >= 0 || !isWanted(index))
+			return;
+		downloaded.clear(index);
+		addCandidate(index);
+	}
+
+	/**
+	 * Smette di ricevere dal {@link FileManager} le notifiche dei pezzi posseduti; deve essere
+	 * chiamato quando lo scaricamento termina.
+	 */
+	void close() {
+		fileManager.removePieceListener(this);
 	}
 
 }
@@ -3,32 +3,90 @@ package bitCreekPeer;
 import ioInterface.OutInterface;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Set;
 
 import bitCreekCommon.Peer;
+import bitCreekCommon.PieceBitfield;
 import bitCreekCommon.TorrentFile;
 
 /**
- * Scarica un certo insieme di pezzi da uno e un solo peer.
+ * Scarica da uno e un solo peer tutti i pezzi utili che possiede su un'unica connessione che
+ * rimane aperta finche' il peer ha pezzi da offrire.
+ * <p>
+ * Le richieste vengono inviate in pipeline: ci sono sempre fino a {@link #depth} richieste in
+ * attesa di risposta e appena arriva un pezzo viene inviata la richiesta successiva, prima di
+ * controllare l'hash del pezzo arrivato, cosi' che il collegamento non resti mai fermo ad
+ * attendere un viaggio di andata e ritorno.
+ * <p>
+ * Per tenere pieno il collegamento la profondita' della pipeline deve coprire il prodotto tra
+ * banda e latenza, ma richieste in piu' riservano a un peer lento pezzi che altri peer potrebbero
+ * inviare prima. Per questo la profondita' viene adattata a ogni connessione come la finestra di
+ * TCP: la connessione misura la velocita' con cui arrivano i pezzi e il tempo minimo tra la
+ * richiesta e l'arrivo di un pezzo, e la profondita' diventa il numero di pezzi che arrivano in
+ * quel tempo alla velocita' misurata, aumentato di un quarto piu' uno. Finche' la velocita'
+ * cresce con la profondita' anche la profondita' cresce; quando il collegamento e' saturo la
+ * velocita' smette di crescere e la profondita' si ferma appena sopra il prodotto tra banda e
+ * latenza. Prima della prima misura la profondita' cresce di uno per ogni pezzo arrivato. La
+ * profondita' e' compresa tra {@link #MIN_PIPELINE_DEPTH} e <code>bitCreek.pipelineDepth</code>
+ * (per default {@link #DEFAULT_PIPELINE_DEPTH}).
+ * <p>
+ * Se il server annuncia i nuovi pezzi (vedi {@link PeerWire#HAVE}) e non possiede tutto il file
+ * la connessione rimane aperta anche senza richieste in attesa, finche' il peer non ha scaricato
+ * tutto il file; quando arriva l'ultimo pezzo vengono chiuse le connessioni di tutti gli
+ * scaricatori del file.
+ * <p>
+ * Mentre la connessione e' aperta il peer e' registrato come connesso nel {@link PeerExchange}
+ * del peer; i peer che il server invia (vedi {@link PeerWire#PEX}) diventano candidati da
+ * contattare.
+ * <p>
+ * I messaggi sono codificati come descritto in {@link PeerWire}; i byte di ogni pezzo vengono
+ * letti dal canale direttamente nell'array del pezzo. Mentre il server strozza la connessione non
+ * ci sono richieste in attesa e i pezzi che erano stati richiesti possono essere scaricati da altri
+ * peer; i byte dei pezzi verificati vengono comunicati al {@link Choker} del peer, cosi' che il
+ * server del peer serva per primi i peer da cui scarica di piu'.
+ * <p>
+ * Nella fase finale dello scaricamento lo stesso pezzo puo' essere richiesto a piu' peer (vedi
+ * {@link PiecesChooser}): lo scaricatore che riceve per primo il pezzo cancella le richieste
+ * degli altri con {@link #cancel(int)}, l'unico metodo che puo' essere chiamato da un altro
+ * thread.
  * 
  * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
  * 
  */
 class PiecesDownloader implements Runnable {
 
+	/** il numero massimo di default di richieste in attesa di risposta */
+	private static final int DEFAULT_PIPELINE_DEPTH = 64;
+
+	/** il numero minimo di richieste in attesa di risposta */
+	private static final int MIN_PIPELINE_DEPTH = 2;
+
+	/** il numero massimo di richieste in attesa di risposta */
+	private static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger(
+			"bitCreek.pipelineDepth", DEFAULT_PIPELINE_DEPTH));
+
+	/** il numero iniziale di richieste in attesa di risposta */
+	private static final int INITIAL_PIPELINE_DEPTH = Math.min(4, PIPELINE_DEPTH);
+
+	/** la durata minima in nanosecondi di una misura della velocita' */
+	private static final long RATE_WINDOW_NANOS = 500000000L;
+
 	/** il server p2p del peer da cui scaricare */
 	private final Peer peerServer;
 
-	private final Socket socket;
+	private final SocketChannel channel;
 
 	/** il descrittore del file da scaricare */
 	private final TorrentFile torrent;
 
 	/** lista di peer non fidati */
-	private ArrayList<Peer> bannedList;
+	private Set<Peer> bannedList;
 
 	/** gestore dei file del peer */
 	private FileManager fileManager;
@@ -39,58 +97,240 @@ class PiecesDownloader implements Runnable {
 	/** l'interfaccia di output */
 	private final OutInterface io;
 
-	PiecesDownloader(Peer peerServer, TorrentFile torrent, ArrayList<Peer> bannedList,
-			FileManager owned, PiecesChooser chunckChooser, OutInterface log)
-			throws UnableToConnectToPeerException {
+	/**
+	 * gli indici dei pezzi richiesti e non ancora arrivati, in ordine di richiesta; il suo monitor
+	 * protegge anche {@link #choked} e {@link #closed}
+	 */
+	private final ArrayDeque<Integer> inFlight;
+
+	/** <code>true</code> se il server strozza la connessione */
+	private boolean choked;
+
+	/** <code>true</code> se lo scaricamento e' terminato */
+	private boolean closed;
+
+	/** <code>true</code> se il server annuncia i nuovi pezzi */
+	private boolean announces;
+
+	/** il numero massimo attuale di richieste in attesa di risposta */
+	private int depth;
+
+	/** per ogni pezzo richiesto l'istante della richiesta in nanosecondi */
+	private final long[] requestTimes;
+
+	/** il tempo minimo in nanosecondi tra la richiesta e l'arrivo di un pezzo */
+	private long minDelay;
+
+	/** la velocita' stimata in byte al secondo, 0 prima della prima misura */
+	private double rate;
+
+	/** l'inizio in nanosecondi della misura in corso della velocita' */
+	private long windowStart;
+
+	/** i byte arrivati dall'inizio della misura in corso */
+	private long windowBytes;
+
+	/** l'oggetto a cui comunicare i byte scaricati */
+	private final Choker choker;
+
+	/** l'oggetto a cui comunicare i peer connessi e scoperti */
+	private final PeerExchange peerExchange;
+
+	/** la porta su cui e' in ascolto il server del peer */
+	private final int localPort;
+
+	PiecesDownloader(Peer peerServer, TorrentFile torrent, Set<Peer> bannedList,
+			FileManager owned, PiecesChooser chunckChooser, OutInterface log, Choker choker,
+			PeerExchange peerExchange, int localPort) throws UnableToConnectToPeerException {
 		this.peerServer = peerServer;
 		this.torrent = torrent;
 		this.bannedList = bannedList;
 		this.fileManager = owned;
 		this.piecesChooser = chunckChooser;
 		this.io = log;
+		this.inFlight = new ArrayDeque<Integer>(PIPELINE_DEPTH);
+		this.depth = INITIAL_PIPELINE_DEPTH;
+		this.requestTimes = new long[torrent.getPiecesNumber()];
+		this.minDelay = Long.MAX_VALUE;
+		this.choker = choker;
+		this.peerExchange = peerExchange;
+		this.localPort = localPort;
 		try {
-			socket = new Socket(peerServer.getAddress(), peerServer.getPort());
+			channel = SocketChannel.open(new InetSocketAddress(peerServer.getAddress(),
+					peerServer.getPort()));
+			channel.socket().setTcpNoDelay(true);
 		} catch (IOException e) {
 			log.println(" unable to connect to peer " + peerServer.toString());
 			throw new UnableToConnectToPeerException();
 		}
 	}
 
-	public void run() {
+	/**
+	 * Restituisce il peer da cui si scarica.
+	 * 
+	 * @return il peer da cui si scarica.
+	 */
+	Peer getPeer() {
+		return peerServer;
+	}
+
+	/**
+	 * Chiude la connessione con il peer. Lo scaricamento in corso termina e i pezzi richiesti e
+	 * non ancora arrivati possono essere richiesti ad altri peer.
+	 */
+	void close() {
+		synchronized (inFlight) {
+			closed = true;
+		}
 		try {
-			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
 
+	public void run() {
+		boolean connected = false;
+		try {
 			/*
-			 * invia al peer che fa da server una query che contiene il nome del file di cui il peer
-			 * vuole scaricare dei pezzi
+			 * invia al peer che fa da server l'handshake che contiene il nome del file di cui il
+			 * peer vuole scaricare dei pezzi e legge la sua risposta
 			 */
-			out.writeObject(torrent.fileName);
+			PeerWire.writeFully(channel, PeerWire.handshake(PeerWire.VERSION, torrent.fileName));
+			ByteBuffer header = ByteBuffer.allocate(PeerWire.HEADER_LENGTH);
+			if (readHeader(header) != PeerWire.HANDSHAKE)
+				throw new ProtocolException(" handshake expected ");
+			int version = PeerWire.readHandshake(readPayload(header, PeerWire.MAX_CONTROL_LENGTH),
+					new String[1]);
 
-			/* la risposta del server al peer e' una lista eventualmente vuota di offsets */
-			ArrayList<Long> availableList = (ArrayList<Long>) in.readObject();
-			piecesChooser.addAvailablePieces(peerServer, availableList);
-
-			ArrayList<Long> choosed = piecesChooser.choosePieces(peerServer);
-
-			/* il peer risponde al server con una lista eventualmente vuota di pezzi richiesti */
-			out.writeObject(choosed);
+			/*
+			 * poi il server invia la codifica compatta dell'insieme dei pezzi posseduti,
+			 * eventualmente vuota
+			 */
+			if (readHeader(header) != PeerWire.BITFIELD)
+				throw new ProtocolException(" bitfield expected ");
+			byte[] available = readPayload(header, (torrent.getPiecesNumber() + 7) / 8).array();
+			piecesChooser.addAvailablePieces(this, PieceBitfield.fromByteArray(available, torrent
+					.getPiecesNumber()));
+			peerExchange.connected(torrent.fileName, peerServer);
+			connected = true;
 
 			/*
-			 * il peer attende i pezzi in ordine di offsets crescente e per ogni pezzo ricevuto
-			 * controlla l'sha1. se l'sha1 e' corretto allora memorizza il pezzo nel file system
-			 * altrimenti aggiunge il peer nella banned list
+			 * il peer riempie la pipeline di richieste e per ogni pezzo ricevuto invia una nuova
+			 * richiesta e poi controlla l'sha1. se l'sha1 e' corretto allora memorizza il pezzo nel
+			 * file system altrimenti aggiunge il peer nella banned list
 			 */
-			for (long choosedOffset : choosed) {
-				byte[] piece = (byte[]) in.readObject();
-				if (torrent.hashsMatch(choosedOffset, piece)) {
-					fileManager.addAndStorePiece(torrent.fileName, choosedOffset, piece, torrent
-							.getLengthOfPiece(choosedOffset));
+			ByteBuffer index = ByteBuffer.allocate(4);
+			announces = version >= PeerWire.HAVE_VERSION;
+			synchronized (inFlight) {
+				choked = version >= PeerWire.CHOKE_VERSION;
+			}
+			if (version >= PeerWire.CHOKE_VERSION) {
+				/* il server sa chi e' il peer e decide quando servirlo */
+				ByteBuffer port = ByteBuffer.allocate(PeerWire.INT_MESSAGE_LENGTH);
+				PeerWire.putIntMessage(port, PeerWire.PORT, localPort);
+				port.flip();
+				PeerWire.writeFully(channel, port);
+			} else {
+				request();
+			}
+			while (isWaiting()) {
+				byte type = readHeader(header);
+				int length = header.getInt(0) - 1;
+				if (type == PeerWire.CHOKE || type == PeerWire.UNCHOKE) {
+					skip(length);
+					if (type == PeerWire.CHOKE) {
+						/* il server ha scartato le richieste a cui non ha ancora risposto */
+						synchronized (inFlight) {
+							choked = true;
+							releaseAll();
+						}
+					} else {
+						synchronized (inFlight) {
+							choked = false;
+							/* il tempo passato strozzati non conta nella velocita' */
+							windowStart = System.nanoTime();
+							windowBytes = 0;
+						}
+						request();
+					}
+					continue;
+				}
+				if (type == PeerWire.HAVE) {
+					if (length != 4)
+						throw new ProtocolException(" invalid message length " + length);
+					index.clear();
+					PeerWire.readFully(channel, index);
+					try {
+						if (piecesChooser.pieceAvailable(peerServer, index.getInt(0)))
+							request();
+					} catch (IllegalArgumentException e) {
+						throw new ProtocolException(e.getMessage());
+					}
+					continue;
+				}
+				if (type == PeerWire.PEX) {
+					ArrayList<Peer> added = new ArrayList<Peer>();
+					ArrayList<Peer> dropped = new ArrayList<Peer>();
+					PeerWire.readPex(readPayload(header, PeerWire.MAX_CONTROL_LENGTH), added,
+							dropped);
+					peerExchange.discovered(torrent.fileName, added, dropped);
+					continue;
+				}
+				if (type != PeerWire.PIECE && type != PeerWire.REJECT) {
+					/* un messaggio sconosciuto viene ignorato */
+					skip(length);
+					continue;
+				}
+				if (length < 4 || (type == PeerWire.REJECT && length != 4))
+					throw new ProtocolException(" invalid message length " + length);
+				index.clear();
+				PeerWire.readFully(channel, index);
+				int choosedIndex = index.getInt(0);
+				boolean requested;
+				synchronized (inFlight) {
+					requested = inFlight.remove(choosedIndex);
+				}
+				if (!requested) {
+					/* la risposta a una richiesta cancellata o scartata da uno strozzamento */
+					if (type == PeerWire.PIECE)
+						piecesChooser.duplicate(length - 4);
+					skip(length - 4);
+					continue;
+				}
+				if (type == PeerWire.REJECT) {
+					/* il server non possiede piu' il pezzo */
+					piecesChooser.pieceUnavailable(peerServer, choosedIndex);
+					request();
+					continue;
+				}
+				long choosedOffset = (long) choosedIndex * torrent.pieceLength;
+				length -= 4;
+				byte[] piece = null;
+				if (length == torrent.getLengthOfPiece(choosedOffset)) {
+					piece = new byte[length];
+					PeerWire.readFully(channel, ByteBuffer.wrap(piece));
+					synchronized (inFlight) {
+						adaptDepth(choosedIndex, length);
+					}
+					request();
+				}
+				if (piece != null && torrent.hashsMatch(choosedOffset, piece)) {
+					choker.received(peerServer, length);
+					ArrayList<PiecesDownloader> others = piecesChooser.pieceDownloaded(peerServer,
+							choosedIndex, length);
+					if (others == null)
+						continue;
+					for (PiecesDownloader other : others)
+						other.cancel(choosedIndex);
+					fileManager.addAndStorePiece(torrent, choosedIndex, piece, length);
 					io.println("a piece has been downloaded. file name=" + torrent.fileName
-							+ ", piece offset=" + choosedOffset + " piece length ="
-							+ torrent.getLengthOfPiece(choosedOffset) + " from peer="
-							+ peerServer.toString());
+							+ ", piece offset=" + choosedOffset + " piece length =" + length
+							+ " from peer=" + peerServer.toString());
+					/* il pezzo arrivato puo' aver fatto iniziare la fase finale */
+					request();
+					piecesChooser.closeIfComplete();
 				} else {
+					piecesChooser.release(peerServer, choosedIndex);
 					bannedList.add(peerServer);
 					io.println(" downloaded piece " + choosedOffset
 							+ " has a wrong sha1. adding peer " + peerServer.toString()
@@ -98,13 +338,157 @@ class PiecesDownloader implements Runnable {
 					break;
 				}
 			}
-			out.close();
-			in.close();
-			socket.close();
-		} catch (Throwable e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.exit(-1);
+		} catch (IOException e) {
+			boolean closedByPeer;
+			synchronized (inFlight) {
+				closedByPeer = !closed;
+			}
+			if (closedByPeer)
+				io.println(" connection with peer " + peerServer.toString() + " closed: "
+						+ e.getMessage());
+		} catch (InterruptedException e) {
+		} finally {
+			synchronized (inFlight) {
+				closed = true;
+				releaseAll();
+			}
+			piecesChooser.removePeer(peerServer);
+			if (connected)
+				peerExchange.disconnected(torrent.fileName, peerServer);
+			close();
+		}
+	}
+
+	/**
+	 * Cancella la richiesta del pezzo di indice <param>index</param>, che e' gia' stato scaricato
+	 * da un altro peer, e al suo posto richiede un altro pezzo. Se il pezzo non e' piu' tra le
+	 * richieste in attesa di risposta non fa nulla.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 */
+	void cancel(int index) {
+		synchronized (inFlight) {
+			if (closed || !inFlight.remove(index))
+				return;
+		}
+		ByteBuffer message = ByteBuffer.allocate(PeerWire.INT_MESSAGE_LENGTH);
+		PeerWire.putIntMessage(message, PeerWire.CANCEL, index);
+		message.flip();
+		try {
+			PeerWire.writeFully(channel, message);
+			request();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * restituisce <code>true</code> se ci sono richieste in attesa di risposta, se si attende che
+	 * il server smetta di strozzare la connessione oppure se il server potra' annunciare pezzi
+	 * utili
+	 */
+	private boolean isWaiting() {
+		synchronized (inFlight) {
+			if (closed)
+				return false;
+			if (choked || !inFlight.isEmpty())
+				return true;
+		}
+		return announces && piecesChooser.mayOffer(peerServer);
+	}
+
+	/**
+	 * aggiorna le misure con l'arrivo del pezzo di indice <param>index</param> e lunghezza
+	 * <param>length</param> e adatta di conseguenza la profondita' della pipeline
+	 */
+	private void adaptDepth(int index, int length) {
+		long now = System.nanoTime();
+		minDelay = Math.min(minDelay, now - requestTimes[index]);
+		windowBytes += length;
+		if (now - windowStart < RATE_WINDOW_NANOS) {
+			if (rate == 0)
+				depth = Math.min(depth + 1, PIPELINE_DEPTH);
+			return;
+		}
+		double sample = windowBytes * 1e9 / (now - windowStart);
+		rate = rate == 0 ? sample : (rate + sample) / 2;
+		windowStart = now;
+		windowBytes = 0;
+		double pieces = rate * minDelay / 1e9 / torrent.pieceLength;
+		depth = Math.max(MIN_PIPELINE_DEPTH, Math.min(PIPELINE_DEPTH,
+				(int) Math.ceil(pieces * 1.25) + 1));
+	}
+
+	/** rende di nuovo disponibili per altri peer i pezzi richiesti e non ancora arrivati */
+	private void releaseAll() {
+		for (int index : inFlight)
+			piecesChooser.release(peerServer, index);
+		inFlight.clear();
+	}
+
+	/**
+	 * legge in <param>header</param> l'intestazione del prossimo messaggio e ne restituisce il
+	 * tipo
+	 */
+	private byte readHeader(ByteBuffer header) throws IOException {
+		header.clear();
+		PeerWire.readFully(channel, header);
+		if (header.getInt(0) < 1)
+			throw new ProtocolException(" invalid message length " + header.getInt(0));
+		return header.get(4);
+	}
+
+	/** legge e scarta <param>length</param> byte */
+	private void skip(int length) throws IOException {
+		ByteBuffer discarded = ByteBuffer.allocate(Math.min(length, 1 << 14));
+		while (length > 0) {
+			discarded.clear();
+			discarded.limit(Math.min(length, discarded.capacity()));
+			PeerWire.readFully(channel, discarded);
+			length -= discarded.limit();
+		}
+	}
+
+	/**
+	 * legge il contenuto del messaggio la cui intestazione e' in <param>header</param>, che non
+	 * puo' essere piu' lungo di <param>maxLength</param> byte
+	 */
+	private ByteBuffer readPayload(ByteBuffer header, int maxLength) throws IOException {
+		int length = header.getInt(0) - 1;
+		if (length > maxLength)
+			throw new ProtocolException(" message too long " + length);
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		PeerWire.readFully(channel, payload);
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * invia al server nuove richieste finche' le richieste in attesa di risposta non sono
+	 * {@link #depth} oppure il server non ha piu' pezzi utili; non invia nulla se il server
+	 * strozza la connessione
+	 */
+	private void request() throws IOException {
+		ByteBuffer requests = ByteBuffer.allocate(PIPELINE_DEPTH * PeerWire.INT_MESSAGE_LENGTH);
+		synchronized (inFlight) {
+			int index;
+			long now = System.nanoTime();
+			if (inFlight.isEmpty()) {
+				/* il collegamento e' rimasto fermo: la misura della velocita' ricomincia */
+				windowStart = now;
+				windowBytes = 0;
+			}
+			while (!closed && !choked && inFlight.size() < depth
+					&& (index = piecesChooser.choosePiece(peerServer)) >= 0) {
+				inFlight.add(index);
+				requestTimes[index] = now;
+				PeerWire.putIntMessage(requests, PeerWire.REQUEST, index);
+			}
+		}
+		if (requests.position() > 0) {
+			requests.flip();
+			PeerWire.writeFully(channel, requests);
 		}
 	}
 }
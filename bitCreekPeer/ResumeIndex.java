@@ -0,0 +1,235 @@
+package bitCreekPeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import bitCreekCommon.PieceBitfield;
+
+/**
+ * L'indice di ripresa di un file in corso di scaricamento. Memorizza su disco l'insieme dei pezzi
+ * gia' scritti nel file di appoggio in modo che all'avvio il peer sappia quali pezzi possiede
+ * senza dover rileggere il file di appoggio.
+ * <p>
+ * L'indice e' un file formato da un'intestazione di lunghezza fissa seguita dalla codifica
+ * compatta del {@link PieceBitfield} dei pezzi posseduti:
+ * <ul>
+ * <li>4 byte: il numero magico {@link #MAGIC}</li>
+ * <li>4 byte: la versione del formato</li>
+ * <li>1 byte: 1 se l'indice e' stato chiuso correttamente, 0 altrimenti</li>
+ * <li>8 byte: la lunghezza del file di appoggio alla chiusura dell'indice</li>
+ * <li>8 byte: la data di ultima modifica del file di appoggio alla chiusura dell'indice</li>
+ * <li>4 byte: il numero di pezzi del file</li>
+ * </ul>
+ * Ogni volta che un pezzo viene aggiunto viene riscritto solo il byte del bitfield che lo
+ * contiene. L'indice viene marcato come non chiuso correttamente alla prima modifica e come chiuso
+ * correttamente solo dopo aver scritto su disco il file di appoggio, quindi un indice chiuso
+ * correttamente la cui lunghezza e data di modifica coincidono con quelle del file di appoggio
+ * descrive esattamente il contenuto del file.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+class ResumeIndex {
+
+	/** il numero magico all'inizio di ogni indice */
+	private static final int MAGIC = 0x42435249;
+
+	/**
+	 * la versione del formato dell'indice; la versione 2 usa la lunghezza dei pezzi scelta in base
+	 * alla lunghezza del file
+	 */
+	private static final int VERSION = 2;
+
+	/** la posizione del flag di chiusura corretta */
+	private static final int CLEAN_POSITION = 8;
+
+	/** la lunghezza dell'intestazione */
+	private static final int HEADER_LENGTH = 29;
+
+	/** il file aperto */
+	private final RandomAccessFile randomAccessFile;
+
+	/** il canale del file */
+	private final FileChannel channel;
+
+	/** i pezzi posseduti */
+	private final PieceBitfield owned;
+
+	/** <code>true</code> se l'indice e' stato chiuso correttamente */
+	private boolean clean;
+
+	/** la lunghezza del file di appoggio registrata nell'indice */
+	private long dataLength;
+
+	/** la data di ultima modifica del file di appoggio registrata nell'indice */
+	private long dataLastModified;
+
+	private ResumeIndex(File file, PieceBitfield owned) throws IOException {
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		this.owned = owned;
+	}
+
+	/**
+	 * Crea un nuovo indice nel file <param>file</param> che registra i pezzi
+	 * <param>owned</param>. Se il file esiste viene sovrascritto.
+	 * 
+	 * @param file
+	 *            il file dell'indice
+	 * @param owned
+	 *            l'insieme dei pezzi posseduti, che viene scritto nell'indice
+	 * @return il nuovo indice
+	 * @throws IOException
+	 */
+	static ResumeIndex create(File file, PieceBitfield owned) throws IOException {
+		ResumeIndex index = new ResumeIndex(file, owned);
+		byte[] bitfield = owned.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bitfield.length);
+		buffer.putInt(MAGIC).putInt(VERSION).put((byte) 0).putLong(0).putLong(0).putInt(
+				owned.size()).put(bitfield).flip();
+		index.channel.truncate(0);
+		while (buffer.hasRemaining())
+			index.channel.write(buffer, buffer.position());
+		return index;
+	}
+
+	/**
+	 * Legge con una sola lettura l'indice memorizzato nel file <param>file</param>.
+	 * 
+	 * @param file
+	 *            il file dell'indice
+	 * @return l'indice letto oppure <code>null</code> se il file non contiene un indice valido
+	 * @throws IOException
+	 */
+	static ResumeIndex load(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		byte[] content;
+		try {
+			if (in.length() < HEADER_LENGTH || in.length() > Integer.MAX_VALUE)
+				return null;
+			content = new byte[(int) in.length()];
+			in.readFully(content);
+		} finally {
+			in.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return null;
+		boolean clean = buffer.get() == 1;
+		long dataLength = buffer.getLong();
+		long dataLastModified = buffer.getLong();
+		int piecesNumber = buffer.getInt();
+		if (piecesNumber < 0 || buffer.remaining() != (piecesNumber + 7) / 8)
+			return null;
+		byte[] bitfield = new byte[buffer.remaining()];
+		buffer.get(bitfield);
+		ResumeIndex index = new ResumeIndex(file, PieceBitfield.fromByteArray(bitfield,
+				piecesNumber));
+		index.clean = clean;
+		index.dataLength = dataLength;
+		index.dataLastModified = dataLastModified;
+		return index;
+	}
+
+	/**
+	 * Restituisce <code>true</code> se l'indice e' stato chiuso correttamente dopo l'ultima
+	 * modifica del file di appoggio <param>dataFile</param>; altrimenti <code>false</code>.
+	 * 
+	 * @param dataFile
+	 *            il file di appoggio descritto dall'indice
+	 * @return <code>true</code> se l'indice descrive esattamente il contenuto di
+	 *         <param>dataFile</param>; altrimenti <code>false</code>.
+	 */
+	boolean isUpToDate(File dataFile) {
+		return clean && FileManager.contentLength(dataFile) == dataLength
+				&& FileManager.contentLastModified(dataFile) == dataLastModified;
+	}
+
+	/**
+	 * Restituisce l'insieme dei pezzi posseduti registrato nell'indice.
+	 * 
+	 * @return l'insieme dei pezzi posseduti registrato nell'indice.
+	 */
+	PieceBitfield getOwned() {
+		return owned;
+	}
+
+	/**
+	 * Registra nell'indice che il pezzo di indice <param>index</param> e' posseduto. Il pezzo deve
+	 * essere gia' stato aggiunto all'insieme dei pezzi posseduti.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 * @throws IOException
+	 */
+	synchronized void pieceAdded(int index) throws IOException {
+		markDirty();
+		writeBitfieldByte(index);
+	}
+
+	/**
+	 * Registra nell'indice che il pezzo di indice <param>index</param> non e' piu' posseduto. Il
+	 * pezzo deve essere gia' stato rimosso dall'insieme dei pezzi posseduti.
+	 * 
+	 * @param index
+	 *            l'indice del pezzo
+	 * @throws IOException
+	 */
+	synchronized void pieceRemoved(int index) throws IOException {
+		markDirty();
+		writeBitfieldByte(index);
+	}
+
+	/** riscrive il byte del bitfield che contiene il pezzo <param>index</param> */
+	private void writeBitfieldByte(int index) throws IOException {
+		int first = index & ~7;
+		int b = 0;
+		for (int i = first; i < first + 8 && i < owned.size(); i++)
+			if (owned.has(i))
+				b |= 0x80 >>> (i - first);
+		channel.write(ByteBuffer.wrap(new byte[] { (byte) b }), HEADER_LENGTH + (index >>> 3));
+	}
+
+	/** marca l'indice come non chiuso correttamente */
+	private void markDirty() throws IOException {
+		if (clean) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0 }), CLEAN_POSITION);
+			channel.force(false);
+			clean = false;
+		}
+	}
+
+	/**
+	 * Chiude l'indice registrando la lunghezza e la data di modifica di <param>dataFile</param>.
+	 * Il file di appoggio deve essere gia' stato scritto su disco.
+	 * 
+	 * @param dataFile
+	 *            il file di appoggio descritto dall'indice
+	 * @throws IOException
+	 */
+	synchronized void close(File dataFile) throws IOException {
+		dataLength = FileManager.contentLength(dataFile);
+		dataLastModified = FileManager.contentLastModified(dataFile);
+		ByteBuffer buffer = ByteBuffer.allocate(17);
+		buffer.put((byte) 1).putLong(dataLength).putLong(dataLastModified).flip();
+		channel.force(false);
+		channel.write(buffer, CLEAN_POSITION);
+		channel.force(false);
+		clean = true;
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	/**
+	 * Chiude l'indice senza registrare nulla.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void abandon() throws IOException {
+		channel.close();
+		randomAccessFile.close();
+	}
+}
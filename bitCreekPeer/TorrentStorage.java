@@ -0,0 +1,116 @@
+package bitCreekPeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Il contenuto su disco di uno e un solo torrent: un file di appoggio se il torrent descrive un
+ * solo file (vedi {@link PieceStorage}) oppure una directory di file di appoggio se il torrent
+ * descrive una directory (vedi {@link MultiFileStorage}). Le posizioni sono sempre quelle nella
+ * concatenazione dei file descritti, quindi chi legge e scrive i pezzi non deve sapere come sono
+ * divisi tra i file.
+ * 
+ * @author Federico Viscomi 412006 viscomi@cli.di.unipi.it
+ * 
+ */
+abstract class TorrentStorage {
+
+	/**
+	 * Scrive di seguito i byte rimanenti dei buffer <param>srcs</param> a partire dalla posizione
+	 * <param>offset</param> del contenuto.
+	 * 
+	 * @param offset
+	 *            la posizione del primo byte da scrivere
+	 * @param srcs
+	 *            i byte da scrivere
+	 * @throws IOException
+	 */
+	abstract void write(long offset, ByteBuffer[] srcs) throws IOException;
+
+	/**
+	 * Legge al piu' <param>count</param> byte a partire dalla posizione <param>offset</param>
+	 * del contenuto e li copia in <param>dst</param>.
+	 * 
+	 * @param offset
+	 *            la posizione del primo byte da leggere
+	 * @param dst
+	 *            il buffer in cui copiare i byte letti
+	 * @param count
+	 *            il numero massimo di byte da leggere
+	 * @return il numero di byte letti, minore di <param>count</param> solo se si raggiunge la
+	 *         fine del contenuto
+	 * @throws IOException
+	 */
+	abstract int read(long offset, byte[] dst, int count) throws IOException;
+
+	/**
+	 * Legge i byte a partire dalla posizione <param>offset</param> del contenuto e li copia nei
+	 * byte rimanenti di <param>dst</param>.
+	 * 
+	 * @param offset
+	 *            la posizione del primo byte da leggere
+	 * @param dst
+	 *            il buffer in cui copiare i byte letti
+	 * @throws IOException
+	 */
+	abstract void read(long offset, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Invia sul canale <param>target</param> al piu' <param>count</param> byte a partire dalla
+	 * posizione <param>offset</param> del contenuto senza copiarli in memoria, con un solo
+	 * tentativo: se <param>target</param> e' un canale non bloccante possono essere inviati meno
+	 * byte, anche nessuno.
+	 * 
+	 * @param offset
+	 *            la posizione del primo byte da inviare
+	 * @param count
+	 *            il numero massimo di byte da inviare
+	 * @param target
+	 *            il canale su cui inviare i byte
+	 * @return il numero di byte inviati
+	 * @throws IOException
+	 */
+	abstract long transferTo(long offset, long count, WritableByteChannel target)
+			throws IOException;
+
+	/**
+	 * Forza la scrittura su disco di tutte le modifiche fatte al contenuto.
+	 * 
+	 * @throws IOException
+	 */
+	abstract void force() throws IOException;
+
+	/**
+	 * Chiude i file aperti.
+	 * 
+	 * @throws IOException
+	 */
+	abstract void close() throws IOException;
+
+	/**
+	 * Sposta il file o la directory di appoggio in <param>destination</param>. Il contenuto
+	 * rimane aperto e puo' continuare ad essere letto anche durante lo spostamento.
+	 * 
+	 * @param destination
+	 *            la nuova posizione
+	 * @throws IOException
+	 *             se non e' possibile spostare il file o la directory
+	 */
+	abstract void moveTo(File destination) throws IOException;
+
+	/**
+	 * Restituisce il file o la directory di appoggio.
+	 * 
+	 * @return il file o la directory di appoggio.
+	 */
+	abstract File getFile();
+
+	/**
+	 * Restituisce la lunghezza del contenuto.
+	 * 
+	 * @return la lunghezza del contenuto.
+	 */
+	abstract long getLength();
+}
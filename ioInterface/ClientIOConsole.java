@@ -2,9 +2,9 @@ package ioInterface;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Map.Entry;
 
+import bitCreekCommon.PieceBitfield;
 import bitCreekPeer.BitCreekPeer;
 
 /**
@@ -32,16 +32,19 @@ public class ClientIOConsole {
 					if (read.startsWith("lo")) {
 						/* elenca i file posseduti con le relative parti */
 						System.out.println(" owned file list follows");
-						for (Entry<String, ArrayList<Long>> owned : peer.getOwned()) {
+						for (Entry<String, PieceBitfield> owned : peer.getOwned()) {
 							System.out.print("\t file=\"" + owned.getKey() + "\"");
 							if (peer.hasACompleteCopy(owned.getKey()))
 								System.out.print(" has a complete copy\n");
 							else {
-								System.out.print("\n  offset list follows \n");
-								for (Long part : owned.getValue()) {
-									System.out.print(" " + part);
+								PieceBitfield pieces = owned.getValue();
+								System.out.print("\n  " + pieces.cardinality() + " of "
+										+ pieces.size() + " pieces, index list follows \n");
+								for (int index = pieces.nextSetBit(0); index >= 0; index = pieces
+										.nextSetBit(index + 1)) {
+									System.out.print(" " + index);
 								}
-								System.out.println("\n  offset list ends");
+								System.out.println("\n  index list ends");
 							}
 						}
 						System.out.println(" owned file list ends");
@@ -52,11 +55,14 @@ public class ClientIOConsole {
 							System.out.print(" " + fileName);
 						}
 						System.out.println("\n swarm list ends");
+					} else if (read.startsWith("cs")) {
+						/* mostra le statistiche della cache dei pezzi */
+						System.out.println(" " + peer.getCacheStatistics());
 					} else if (read.startsWith("exit")) {
 						System.out.println(" bye ");
 						System.exit(-1);
 					} else {
-						System.err.println(" unrecognized command " + read + "\n USAGE lo ls\n");
+						System.err.println(" unrecognized command " + read + "\n USAGE lo ls cs\n");
 					}
 				}
 			} catch (Exception e) {